@@ -0,0 +1,26 @@
+package android.os;
+
+/*
+	Android の外(Linux の JVM)でベンチマークと負荷テストを動かすための代用品です。
+	inotify は使わないので、イベントは通知されません。
+	JVM で更新の通知が必要な場合は TransactionalFileAccess.VersionPollWatcher を使ってください。
+*/
+public abstract class FileObserver{
+	public static final int MODIFY = 0x00000002;
+	public static final int CLOSE_WRITE = 0x00000008;
+
+	public FileObserver(String path){
+		this(path,0xfff);
+	}
+
+	public FileObserver(String path,int mask){
+	}
+
+	public abstract void onEvent(int event,String path);
+
+	public void startWatching(){
+	}
+
+	public void stopWatching(){
+	}
+}
@@ -0,0 +1,27 @@
+package android.os;
+
+import java.io.File;
+
+/*
+	Android の外(Linux の JVM)でベンチマークと負荷テストを動かすための代用品です。
+	TransactionalFileAccess.set_permission() がリフレクションで呼び出します。
+	java.io.File で設定できる所有者とそれ以外の読み書きの許可だけを反映し、uid と gid は無視します。
+*/
+public class FileUtils{
+	public static final int S_IRUSR = 00400;
+	public static final int S_IWUSR = 00200;
+	public static final int S_IROTH = 00004;
+	public static final int S_IWOTH = 00002;
+
+	// 0 または errno を返す
+	public static int setPermissions(String path,int mode,int uid,int gid){
+		File file = new File(path);
+		if( !file.exists() ) return 2; // ENOENT
+		// 全員の許可を設定してから、所有者の許可を設定し直す
+		file.setReadable( (mode & S_IROTH) != 0, false );
+		file.setReadable( (mode & S_IRUSR) != 0, true );
+		file.setWritable( (mode & S_IWOTH) != 0, false );
+		file.setWritable( (mode & S_IWUSR) != 0, true );
+		return 0;
+	}
+}
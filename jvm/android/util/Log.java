@@ -0,0 +1,45 @@
+package android.util;
+
+/*
+	Android の外(Linux の JVM)でベンチマークと負荷テストを動かすための代用品です。
+	ライブラリ本体が使うメソッドだけを用意して、標準エラー出力に書きます。アプリには含めません。
+*/
+public final class Log{
+
+	private Log(){
+	}
+
+	public static int v(String tag,String msg){
+		return 0;
+	}
+
+	public static int d(String tag,String msg){
+		return println("D",tag,msg,null);
+	}
+
+	public static int i(String tag,String msg){
+		return println("I",tag,msg,null);
+	}
+
+	public static int w(String tag,String msg){
+		return println("W",tag,msg,null);
+	}
+
+	public static int w(String tag,String msg,Throwable tr){
+		return println("W",tag,msg,tr);
+	}
+
+	public static int e(String tag,String msg){
+		return println("E",tag,msg,null);
+	}
+
+	public static int e(String tag,String msg,Throwable tr){
+		return println("E",tag,msg,tr);
+	}
+
+	private static int println(String level,String tag,String msg,Throwable tr){
+		System.err.println(level+"/"+tag+": "+msg);
+		if( tr != null ) tr.printStackTrace();
+		return 0;
+	}
+}
@@ -1,5 +1,7 @@
 package jp.juggler.TestApp120403;
 
+import jp.juggler.util.ActBenchmark;
+import jp.juggler.util.ActStress;
 import jp.juggler.util.ActTestDataFile;
 import jp.juggler.util.ActTestPref;
 import android.app.Activity;
@@ -28,6 +30,18 @@ public class ActMain extends Activity {
 				startActivity(new Intent(self,ActTestPref.class));
 			}
 		});
+        findViewById(R.id.btnBenchmark).setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				startActivity(new Intent(self,ActBenchmark.class));
+			}
+		});
+        findViewById(R.id.btnStress).setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				startActivity(new Intent(self,ActStress.class));
+			}
+		});
     }
     
 
@@ -0,0 +1,59 @@
+package jp.juggler.util;
+
+
+import jp.juggler.TestApp120403.R;
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.TextView;
+
+public class ActBenchmark extends Activity {
+	Activity self = this;
+	TextView tvResult;
+	Thread worker;
+    static final String TAG="Benchmark";
+
+	@Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.act_benchmark);
+        
+        tvResult =(TextView) findViewById(R.id.tvResult);
+        
+        findViewById(R.id.btnStart).setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				if( worker != null && worker.isAlive() ) return;
+				tvResult.setText("");
+				worker = new Thread(new Runnable() {
+					public void run() {
+						try{
+							new Benchmark(getCacheDir(),reporter).runAll();
+							reporter.report("done.");
+						}catch(Throwable ex){
+							ex.printStackTrace();
+							reporter.report("failed: "+ex);
+						}
+					}
+				});
+				worker.start();
+			}
+		});
+    }
+	
+	// 結果をログと画面に出す
+	final Benchmark.Reporter reporter = new Benchmark.Reporter() {
+		@Override
+		public void report(final String line) {
+			Log.d(TAG,line);
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					tvResult.append(line+"\n");
+				}
+			});
+		}
+	};
+}
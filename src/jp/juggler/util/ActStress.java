@@ -0,0 +1,105 @@
+package jp.juggler.util;
+
+
+import java.io.File;
+import java.util.HashMap;
+
+import jp.juggler.TestApp120403.R;
+import jp.juggler.util.ConfigurationFileSP.Encoder;
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.TextView;
+
+public class ActStress extends Activity {
+	Activity self = this;
+	TextView tvResult;
+	Thread worker;
+    static final String TAG="StressTest";
+	static final String datafile_name ="stress_test";
+	
+	static final int n_thread = 4;
+	static final long duration = 10000;
+
+	@Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.act_stress);
+        
+        tvResult =(TextView) findViewById(R.id.tvResult);
+        
+        findViewById(R.id.btnStart).setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				if( worker != null && worker.isAlive() ) return;
+				tvResult.setText("");
+				worker = new Thread(new Runnable() {
+					public void run() {
+						try{
+							run_test();
+						}catch(Throwable ex){
+							ex.printStackTrace();
+							report("failed: "+ex);
+						}
+					}
+				});
+				worker.start();
+			}
+		});
+    }
+	
+	void run_test() throws Exception{
+		File file = getFileStreamPath(datafile_name);
+		TransactionalFileAccess datafile = new TransactionalFileAccess(file.getPath(),0600,true);
+		try{
+			datafile.create();
+			
+			int n_process = StressService.process_list.length;
+			report(String.format("start: %d processes x %d threads, %dms",n_process,n_thread,duration));
+			for( Class<?> c : StressService.process_list ){
+				Intent intent = new Intent(self,c);
+				intent.putExtra(StressService.EXTRA_PATH,file.getPath());
+				intent.putExtra(StressService.EXTRA_THREADS,n_thread);
+				intent.putExtra(StressService.EXTRA_DURATION,duration);
+				startService(intent);
+			}
+			
+			// 全プロセスの結果が揃うまで待つ
+			long timeout = SystemClock.uptimeMillis() + duration + 60000;
+			Encoder encoder = new Encoder();
+			HashMap<String,Object> map;
+			for(;;){
+				Thread.sleep(500);
+				map = StressTest.parse_map(encoder,datafile.load());
+				int n_result = StressTest.count_result(map);
+				if( n_result >= n_process ) break;
+				if( SystemClock.uptimeMillis() >= timeout ){
+					report("timeout. results="+n_result);
+					break;
+				}
+			}
+			
+			// 全体のカウンタとプロセスごとのカウンタの合計を比べる
+			for( String line : StressTest.summarize(map,duration) ){
+				report(line);
+			}
+		}finally{
+			datafile.close();
+		}
+	}
+	
+	// 結果をログと画面に出す
+	void report(final String line) {
+		Log.d(TAG,line);
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				tvResult.append(line+"\n");
+			}
+		});
+	}
+}
@@ -1,6 +1,7 @@
 package jp.juggler.util;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -20,6 +21,7 @@ import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class ActTestPref extends Activity {
 	Activity self = this;
@@ -186,8 +188,50 @@ public class ActTestPref extends Activity {
 				}
 			}
 		});
+        
+        findViewById(R.id.btnCheckReopen).setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				String result = check_reopen(self);
+				Log.d(TAG,"(UI) reopen check: "+result);
+				Toast.makeText(self,result,Toast.LENGTH_LONG).show();
+			}
+		});
     }
     
+    @Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if( pref != null ) pref.release();
+	}
+
+    @Override
+	protected void onResume() {
+		super.onResume();
+		if( pref != null ) pref.registerOnSharedPreferenceChangeListener(change_listener);
+		dump();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if( pref != null ) pref.unregisterOnSharedPreferenceChangeListener(change_listener);
+	}
+
+	// 別プロセスのサービスによる変更も通知される
+	SharedPreferences.OnSharedPreferenceChangeListener change_listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			Log.d(TAG,"(UI) changed: "+key);
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					dump();
+				}
+			});
+		}
+	};
+
     static final String TAG="TEST";
     void test(Context context){
 		HashSet<String> set = new HashSet<String>();
@@ -237,6 +281,37 @@ public class ActTestPref extends Activity {
     	}
     }
 
+    // スナップショットファイルとログモードを併用したファイルを開き直して、追記した変更が残っているか確認する
+    static final String reopen_filename = "pref_reopen";
+    String check_reopen(Context context){
+    	String path = context.getFileStreamPath(reopen_filename).getPath();
+    	new File(path).delete();
+    	new File(path+".bak").delete();
+    	new File(path+".snapshot").delete();
+    	try{
+    		ConfigurationFileSP p = ConfigurationFileSP.getInstance(path,false);
+    		try{
+    			p.setSnapshotFile(true);
+    			p.edit().putInt("a",1).commit();
+    			p.setLogMode(true);
+    			p.edit().putInt("b",2).commit();
+    		}finally{
+    			p.release();
+    		}
+    		p = ConfigurationFileSP.getInstance(path,false);
+    		try{
+    			Map<String,?> map = p.getAll();
+    			if( p.getInt("a",0) != 1 || p.getInt("b",0) != 2 ) return "NG "+map;
+    			return "OK "+map;
+    		}finally{
+    			p.release();
+    		}
+    	}catch(Throwable ex){
+    		ex.printStackTrace();
+    		return "NG "+ex;
+    	}
+    }
+
     void dump(){
     	StringBuffer sb = new StringBuffer();
     	Map<String,?> data = pref.getAll();
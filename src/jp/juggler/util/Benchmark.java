@@ -0,0 +1,390 @@
+/*
+	TransactionalFileAccess と ConfigurationFileSP の主な処理の所要時間を計測します。
+	- Android の API はライブラリ本体が使うもの以外には依存しません。ActBenchmark から呼び出します。
+	  Linux の JVM では jvm/ の代用品と一緒にコンパイルして main() から実行できます(README を参照)。
+	- 各項目はウォームアップの後、一定時間以上かかるまで回数を増やして計測し、１回あたりの時間を報告します。
+	- 結果は端末の状態(ストレージの種類、CPUのクロック等)に強く依存します。同じ端末での比較にだけ使ってください。
+*/
+
+package jp.juggler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+import jp.juggler.util.ConfigurationFileSP.Encoder;
+import jp.juggler.util.TransactionalFileAccess.TransactionProc;
+
+public class Benchmark {
+
+	public interface Reporter{
+		void report(String line);
+	}
+
+	// 計測する処理。count 回繰り返すこと
+	static abstract class Case{
+		abstract void run(int count) throws Exception;
+	}
+
+	// 複数のスレッドで行う計測。スレッドの起動を計測に含めないよう、スレッドは最初に１回だけ起動しておき、
+	// run() のたびに CyclicBarrier で一斉に開始させて、全員が終わるのを待つ
+	static abstract class ParallelCase extends Case{
+		final int n_thread;
+		final Thread[] threads;
+		final CyclicBarrier barrier;
+		int count; // barrier の前に書いて後で読むので同期は不要
+		boolean bStop;
+		volatile Throwable error;
+
+		ParallelCase(int n_thread){
+			this.n_thread = n_thread;
+			this.threads = new Thread[n_thread];
+			this.barrier = new CyclicBarrier(n_thread+1);
+		}
+
+		// スレッド index が count 回のうち受け持つ分を実行する
+		abstract void run_thread(int index,int count) throws Exception;
+
+		void start(){
+			for(int i=0;i<n_thread;++i){
+				final int index = i;
+				threads[i] = new Thread(){
+					@Override
+					public void run() {
+						try{
+							for(;;){
+								barrier.await();
+								if( bStop ) return;
+								try{
+									run_thread(index,count);
+								}catch(Throwable ex){
+									error = ex;
+								}
+								barrier.await();
+							}
+						}catch(Exception ex){
+							// 計測の終了
+						}
+					}
+				};
+				threads[i].start();
+			}
+		}
+
+		@Override
+		void run(int count) throws Exception {
+			this.count = count;
+			barrier.await();
+			barrier.await();
+			if( error != null ) throw new RuntimeException("benchmark thread failed.",error);
+		}
+
+		void stop() throws Exception{
+			bStop = true;
+			barrier.await();
+			for( Thread t : threads ) t.join();
+		}
+	}
+
+	// transaction() のペイロードサイズ
+	public static final int[] payload_sizes = new int[]{ 1024, 10*1024, 100*1024, 1024*1024, 10*1024*1024 };
+	// Encoder の計測に使うエントリ数
+	public static final int[] entry_counts = new int[]{ 10, 100, 1000, 10000 };
+	// getter の競合を計測するスレッド数
+	public static final int[] thread_counts = new int[]{ 1, 2, 4, 8 };
+
+	final File dir;
+	final Reporter reporter;
+	long min_time_ms = 500;
+
+	// 計測ループの結果を捨てないための書き込み先
+	static volatile int sink;
+
+	public Benchmark(File dir,Reporter reporter){
+		this.dir = dir;
+		this.reporter = reporter;
+	}
+
+	// １項目あたりの計測時間の下限
+	public void setMinTime(long ms){
+		this.min_time_ms = ms;
+	}
+
+	public void runAll() throws Exception{
+		bench_load_if_update();
+		for( int size : payload_sizes ){
+			bench_load(size);
+		}
+		for( int size : payload_sizes ){
+			bench_transaction(size);
+		}
+		for( int n : entry_counts ){
+			bench_encoder(n);
+		}
+		for( int n : thread_counts ){
+			bench_getter(n);
+		}
+		for( int n : thread_counts ){
+			bench_concurrent_transaction(n,false);
+			bench_concurrent_transaction(n,true);
+		}
+	}
+
+	// 更新がない場合の load_if_update()
+	public void bench_load_if_update() throws Exception{
+		final TransactionalFileAccess datafile = open_datafile("bench_tfa",1024);
+		try{
+			datafile.load();
+			measure("load_if_update (no change)",0,new Case(){
+				@Override
+				void run(int count) throws Exception {
+					for(int i=0;i<count;++i){
+						if( datafile.load_if_update() != null ) throw new IllegalStateException("unexpected update");
+					}
+				}
+			});
+		}finally{
+			datafile.close();
+		}
+	}
+
+	// 読み込み全体
+	public void bench_load(int size) throws Exception{
+		final TransactionalFileAccess datafile = open_datafile("bench_tfa",size);
+		try{
+			measure("load "+format_size(size),size,new Case(){
+				@Override
+				void run(int count) throws Exception {
+					for(int i=0;i<count;++i){
+						datafile.load();
+					}
+				}
+			});
+		}finally{
+			datafile.close();
+		}
+	}
+
+	// 読み込みと書き込みを含むトランザクション
+	public void bench_transaction(int size) throws Exception{
+		final TransactionalFileAccess datafile = open_datafile("bench_tfa",size);
+		try{
+			final byte[] payload = random_bytes(size);
+			measure("transaction "+format_size(size),size,new Case(){
+				@Override
+				void run(int count) throws Exception {
+					for(int i=0;i<count;++i){
+						datafile.transaction(new TransactionProc() {
+							@Override
+							public byte[] update(byte[] old) {
+								payload[0] = (byte)(old[0]+1);
+								return payload;
+							}
+						});
+					}
+				}
+			});
+		}finally{
+			datafile.close();
+		}
+	}
+
+	// Encoder のエンコードとデコード
+	public void bench_encoder(int n) throws Exception{
+		final Encoder encoder = new Encoder();
+		final HashMap<String,Object> map = make_map(n);
+		final byte[] data = encoder.encode_map(map);
+		final byte[] data_indexed = encoder.encode_map_indexed(map);
+		measure("encode_map "+n+" entries",data.length,new Case(){
+			@Override
+			void run(int count) throws Exception {
+				for(int i=0;i<count;++i){
+					encoder.encode_map(map);
+				}
+			}
+		});
+		measure("encode_map_indexed "+n+" entries",data_indexed.length,new Case(){
+			@Override
+			void run(int count) throws Exception {
+				for(int i=0;i<count;++i){
+					encoder.encode_map_indexed(map);
+				}
+			}
+		});
+		measure("parse_map "+n+" entries",data.length,new Case(){
+			@Override
+			void run(int count) throws Exception {
+				for(int i=0;i<count;++i){
+					encoder.parse_map(data);
+				}
+			}
+		});
+	}
+
+	// 複数スレッドから同時に getXXX() を呼ぶ
+	public void bench_getter(final int n_thread) throws Exception{
+		File file = new File(dir,"bench_pref");
+		file.delete();
+		final ConfigurationFileSP pref = ConfigurationFileSP.getInstance(file.getPath(),false);
+		try{
+			pref.create();
+			pref.importMap(make_map(100));
+			// 各スレッドがそれぞれ count 回呼ぶ。１回あたりの時間は１スレッドから見た遅延になる
+			ParallelCase c = new ParallelCase(n_thread){
+				@Override
+				void run_thread(int index,int count) throws Exception {
+					int sum = 0;
+					for(int j=0;j<count;++j){
+						sum += pref.getInt("int"+((j&15)*5),0);
+					}
+					sink = sum;
+				}
+			};
+			c.start();
+			try{
+				measure("getInt x "+n_thread+" threads",0,c);
+			}finally{
+				c.stop();
+			}
+		}finally{
+			pref.release();
+		}
+	}
+
+	// 複数スレッドから同時に小さなトランザクションを行う。グループコミットの有無で比べる
+	public void bench_concurrent_transaction(final int n_thread,boolean bGroupCommit) throws Exception{
+		final TransactionalFileAccess datafile = open_datafile("bench_tfa",1024);
+		try{
+			datafile.setGroupCommit(bGroupCommit);
+			final TransactionProc proc = new TransactionProc() {
+				@Override
+				public byte[] update(byte[] old) {
+					byte[] data = new byte[old.length];
+					System.arraycopy(old,0,data,0,old.length);
+					++data[0];
+					return data;
+				}
+			};
+			// count 回のトランザクションをスレッドで分担する。１回あたりの時間はスループットの逆数になる
+			ParallelCase c = new ParallelCase(n_thread){
+				@Override
+				void run_thread(int index,int count) throws Exception {
+					int n = count / n_thread + ( index < count % n_thread ? 1 : 0 );
+					for(int j=0;j<n;++j){
+						datafile.transaction(proc);
+					}
+				}
+			};
+			c.start();
+			try{
+				measure("transaction x "+n_thread+" threads"+(bGroupCommit?" (group commit)":""),0,c);
+			}finally{
+				c.stop();
+			}
+		}finally{
+			datafile.close();
+		}
+	}
+
+	/////////////////////////////////////////////////////////////
+
+	private void measure(String name,int bytes_per_op,Case c) throws Exception{
+		// ウォームアップ
+		run_until(c,min_time_ms/2);
+		long[] result = run_until(c,min_time_ms);
+		int count = (int)result[0];
+		long elapsed = result[1];
+		double ns_per_op = (double)elapsed / count;
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": ").append(format_time(ns_per_op)).append("/op");
+		if( bytes_per_op > 0 ){
+			double mb_per_sec = bytes_per_op * 1000.0 / ns_per_op / 1.048576;
+			sb.append(String.format(" (%.1fMB/s)",mb_per_sec));
+		}
+		sb.append(" n=").append(count);
+		reporter.report(sb.toString());
+	}
+
+	// 指定時間以上かかるまで回数を倍にして繰り返す。 {回数,経過ナノ秒} を返す
+	private static long[] run_until(Case c,long min_ms) throws Exception{
+		int count = 1;
+		for(;;){
+			long start = System.nanoTime();
+			c.run(count);
+			long elapsed = System.nanoTime() - start;
+			if( elapsed >= min_ms * 1000000L || count >= (1<<30) ) return new long[]{ count, elapsed };
+			count *= 2;
+		}
+	}
+
+	private TransactionalFileAccess open_datafile(String name,int size) throws IOException{
+		File file = new File(dir,name);
+		file.delete();
+		new File(file.getPath()+".bak").delete();
+		TransactionalFileAccess datafile = new TransactionalFileAccess(file.getPath(),0600,true);
+		final byte[] payload = random_bytes(size);
+		datafile.transaction(new TransactionProc() {
+			@Override
+			public byte[] update(byte[] old) {
+				return payload;
+			}
+		});
+		return datafile;
+	}
+
+	private static byte[] random_bytes(int size){
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	// int,long,float,boolean,String を混ぜたマップを作る
+	static HashMap<String,Object> make_map(int n){
+		HashMap<String,Object> map = new HashMap<String,Object>();
+		Random r = new Random(n);
+		for(int i=0;i<n;++i){
+			switch(i%5){
+			case 0: map.put("int"+i,r.nextInt()); break;
+			case 1: map.put("long"+i,r.nextLong()); break;
+			case 2: map.put("float"+i,r.nextFloat()); break;
+			case 3: map.put("boolean"+i,r.nextBoolean()); break;
+			default: map.put("string"+i,"value-"+Long.toHexString(r.nextLong())); break;
+			}
+		}
+		return map;
+	}
+
+	private static String format_size(int size){
+		if( size >= 1024*1024 ) return (size/(1024*1024))+"MB";
+		if( size >= 1024 ) return (size/1024)+"KB";
+		return size+"B";
+	}
+
+	private static String format_time(double ns){
+		if( ns >= 1000000.0 ) return String.format("%.2fms",ns/1000000.0);
+		if( ns >= 1000.0 ) return String.format("%.2fus",ns/1000.0);
+		return String.format("%.1fns",ns);
+	}
+
+	/////////////////////////////////////////////////////////////
+	// Linux の JVM から実行する
+
+	public static void main(String[] args) throws Exception{
+		if( args.length < 1 || args.length > 2 ){
+			System.err.println("usage: java jp.juggler.util.Benchmark dir [min_time_ms]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		Benchmark bench = new Benchmark(dir,new Reporter(){
+			@Override
+			public void report(String line) {
+				System.out.println(line);
+			}
+		});
+		if( args.length > 1 ) bench.setMinTime(Long.parseLong(args[1]));
+		bench.runAll();
+	}
+}
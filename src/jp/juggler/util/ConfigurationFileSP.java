@@ -1,450 +1,2009 @@
-/*
-	キーと値のマップを保持するタイプの設定管理クラスです。
-	- インタフェースは SharedPreferences とおおむね互換があります。
-	- ファイル更新部分は複数プロセスからの読み書きに対応しています。
-	
-	ただし制限がいくつかあります。
-	- OnSharedPreferenceChangeListener をサポートしてません。実行時にUnsupportedOperationExceptionを出します。
-	- SharedPreferences.Editor#apply() をサポートしてません。実行時にUnsupportedOperationExceptionを出します。
-	- SharedPreferences.Editor#commit の呼び出しスレッドから直接ファイルアクセスを行います。STRICTモードだと問題があるかもしれません。
-	- 継承元インタフェースの制限により、エラー時にIOExceptionではなくRuntimeExceptionを投げる場合があります
-*/
-
-package jp.juggler.util;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
-import jp.juggler.util.TransactionalFileAccess;
-
-import android.content.SharedPreferences;
-
-public class ConfigurationFileSP implements SharedPreferences{
-	static final String TAG="ConfigurationFileSP";
-	
-	///////////////////////////////////////////////////
-	// スレッド間でのインスタンスの共用
-
-	private static HashMap<String,ConfigurationFileSP> file_map = new HashMap<String,ConfigurationFileSP>();
-	public static ConfigurationFileSP getInstance(String path,boolean other_read) throws IOException{
-		synchronized (file_map) {
-			ConfigurationFileSP instance = file_map.get(path);
-			if( instance == null ) instance = new ConfigurationFileSP(path,other_read);
-			return instance;
-		}
-	}
-
-	//////////////////////////////////////////////////////////
-	
-	final Encoder encoder = new Encoder();
-	final TransactionalFileAccess datafile;
-	Map<String,?> mMap = null;
-
-	private ConfigurationFileSP(String path,boolean other_read) throws IOException{
-		this.datafile = new TransactionalFileAccess(
-				path
-				,(other_read ? 0664 : 0660 )
-				,true
-		);
-	}
-	
-	// ファイルを削除して作成し直す
-	/*package access*/ TransactionalFileAccess getDataFile(){
-		return datafile;
-	}
-	
-	// ファイルを削除して作成し直す
-	public void create() throws IOException{
-		datafile.create();
-		reload();
-	}
-	
-	// 設定データをバイト配列にまとめてエクスポートする。
-	public byte[] exportBytes(){
-		return new Encoder().encode_map(getAll());
-	}
-
-	// exportBytes()由来のデータを設定データとして読み込む。
-	public void importBytes(byte[] data){
-		importMap(new Encoder().parse_map(data));
-	}
-	
-	// SharedPreferencesなど外部から提供されたmapのデータをインポートする。
-	public void importMap(Map<String,?> src){
-		ConfigurationEditorSP e = (ConfigurationEditorSP)edit();
-		for(Map.Entry<String,?> entry : src.entrySet() ){
-			e.mModified.put(entry.getKey(),entry.getValue());
-		}
-		e.commit();
-	}
-	
-	///////////////////////////////////////////////////
-	// 公開インタフェース
-	
-	@Override
-	public Map<String, ?> getAll() {
-		synchronized(this){
-			check_update();
-			return new HashMap<String, Object>(mMap);
-		}
-	}
-
-	@Override
-	public boolean contains(String key)  {
-		synchronized(this){
-			check_update();
-            return mMap.containsKey(key);
-		}
-	}
-
-	@Override
-	public boolean getBoolean(String key, boolean defValue) {
-		synchronized(this){
-			check_update();
-            Boolean v = (Boolean)mMap.get(key);
-            return v != null ? v : defValue;
-		}
-	}
-
-	@Override
-	public float getFloat(String key, float defValue) {
-		synchronized(this){
-			check_update();
-            Float v = (Float)mMap.get(key);
-            return v != null ? v : defValue;
-		}
-	}
-
-	@Override
-	public int getInt(String key, int defValue) {
-		synchronized(this){
-			check_update();
-            Integer v = (Integer)mMap.get(key);
-            return v != null ? v : defValue;
-
-		}
-	}
-
-	@Override
-	public long getLong(String key, long defValue) {
-		synchronized(this){
-			check_update();
-            Long v = (Long)mMap.get(key);
-            return v != null ? v : defValue;
-		}
-	}
-
-	@Override
-	public String getString(String key, String defValue) {
-		synchronized(this){
-			check_update();
-            String v = (String)mMap.get(key);
-            return v != null ? v : defValue;
-
-		}
-	}
-	
-	@SuppressWarnings("unchecked")
-	@Override
-	public Set<String> getStringSet(String key, Set<String> defValues) {
-		synchronized(this){
-			check_update();
-	        Set<String> v = (Set<String>) mMap.get(key);
-	        return v != null ? v : defValues;
-		}
-	}
-
-	/////////////////////////////////////////////////////
-	// リスナの管理
-	
-	@Override
-	public void registerOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
-		throw new UnsupportedOperationException("registerOnSharedPreferenceChangeListener is not supported");
-	}
-
-	@Override
-	public void unregisterOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
-		throw new UnsupportedOperationException("unregisterOnSharedPreferenceChangeListener is not supported");
-	}
-
-	///////////////////////////////////////////////////////////////
-	
-	@Override
-	public Editor edit() {
-		return new ConfigurationEditorSP();
-	}
-
-    public final class ConfigurationEditorSP implements SharedPreferences.Editor {
-    	public Editor putString(String key, String value) {
-    		synchronized (this) {
-    			mModified.put(key, value);
-    			return this;
-    		}
-    	}
-    	public Editor putStringSet(String key, Set<String> values) {
-   	          synchronized (this) {
-   	        	  mModified.put(key, values);
-   	        	  return this;
-   	          }
-    	}
-    	public Editor putInt(String key, int value) {
-    		synchronized (this) {
-    			mModified.put(key, value);
-    			return this;
-    		}
-    	}
-    	public Editor putLong(String key, long value) {
-    		synchronized (this) {
-    			mModified.put(key, value);
-    			return this;
-    		}
-    	}
-    	public Editor putFloat(String key, float value) {
-    		synchronized (this) {
-    			mModified.put(key, value);
-    			return this;
-    		}
-    	}
-    	public Editor putBoolean(String key, boolean value) {
-    		synchronized (this) {
-    			mModified.put(key, value);
-    			return this;
-    		}
-    	}
-    	
-        public Editor remove(String key) {
-            synchronized (this) {
-            	// 「削除された」を示す値はこのEditor自身
-                mModified.put(key, this);
-                return this;
-            }
-        }
-        
-        public Editor clear() {
-            synchronized (this) {
-                mClear = true;
-                return this;
-            }
-        }
-
-        /////////////////////////////////////////////////////////
-         
-        public boolean mClear = false;
-    	public HashMap<String, Object> mModified = new HashMap<String,Object>();
-
-		@Override
-		public void apply() {
-			save_background(this);
-		}
-
-		@Override
-		public boolean commit() {
-			return save_foreground(this);
-		}
-    }
-    
-    //////////////////////////////////////////////////////////////////////
-
-	public void reload() {
-		try{
-			synchronized(this){
-				mMap = encoder.parse_map(datafile.load());
-			}
-		}catch(IOException ex){
-			throw new RuntimeException(ex);
-		}
-	}
-	
-	void check_update(){
-		try{
-			synchronized(this){
-				if( mMap == null ){
-					mMap = encoder.parse_map(datafile.load());
-				}else{
-					byte[] data = datafile.load_if_update();
-					if( data != null ) mMap = encoder.parse_map(data);
-				}
-			}
-		}catch(IOException ex){
-			throw new RuntimeException(ex);
-		}
-	}
-	
-	void save_background(final ConfigurationEditorSP cset){
-		throw new UnsupportedOperationException("background update is not supported");
-	}
-	
-	boolean save_foreground(final ConfigurationEditorSP cset){
-		try{
-			synchronized (this) {
-				datafile.transaction(new TransactionalFileAccess.TransactionProc() {
-					@Override
-					public byte[] update(byte[] old_data){
-						HashMap<String,Object> map_new=null;
-						if( old_data == null || cset.mClear ){
-							map_new = new HashMap<String, Object>();
-						}else{
-							map_new = encoder.parse_map(old_data);
-						}
-						for( Map.Entry<String,Object> entry : cset.mModified.entrySet() ){
-							String key = entry.getKey();
-							Object value = entry.getValue();
-							if( value == cset ){
-								map_new.remove(key);
-							}else{
-								map_new.put(key,value);
-							}
-						}
-						return encoder.encode_map(map_new);
-					}
-				});
-				check_update();
-			}
-			return true;
-		}catch(IOException ex){
-			throw new RuntimeException(ex);
-		}
-	}
-	
-	////////////////////////////////////////////////////////////
-	// マップとバイト配列のエンコード/デコード
-	
-	public static final class Encoder{
-		public static final int tmp_size = 1000;
-		public static final String UTF8="UTF-8";
-		
-		private byte[] tmp = new byte[tmp_size];
-		private ByteBuffer tmp_bb = ByteBuffer.wrap(tmp);
-		
-		private final String parse_string(ByteBuffer bb ){
-			try{
-				int bytesize = bb.getInt();
-				if( bytesize <= tmp_size ){
-					bb.get(tmp,0,bytesize);
-					return new String(tmp,0,bytesize,UTF8);
-				}else{
-					byte[] b = new byte[bytesize];
-					bb.get(b,0,bytesize);
-					return new String(b,0,bytesize,UTF8);
-				}
-			}catch(UnsupportedEncodingException ex){
-				throw new RuntimeException(ex);
-				// 発生しない
-			}
-		}
-		private final void endoce_string(ByteArrayOutputStream bao, String key){
-			try{
-				byte[] data = key.getBytes(UTF8);
-				encode_int(bao,data.length);
-				bao.write(data);
-			}catch(IOException ex){
-				throw new RuntimeException(ex);
-				// 発生しない
-			}
-		}
-		private final Set<String> parse_string_set(ByteBuffer bb ){
-			HashSet<String> set = new HashSet<String>();
-			int count = bb.getInt();
-			while(count-- > 0) set.add(parse_string(bb));
-			return set;
-		}
-		private final void endoce_string_set(ByteArrayOutputStream bao, Set<String> set){
-			int count = set.size();
-			encode_int(bao,count);
-			for( String s : set ){
-				endoce_string(bao,s);
-			}
-		}
-		private final void encode_int(ByteArrayOutputStream bao, int value) {
-			tmp_bb.clear(); tmp_bb.putInt(value); bao.write(tmp,0,tmp_bb.position());
-		}
-
-		private final void encode_long(ByteArrayOutputStream bao, long value) {
-			tmp_bb.clear(); tmp_bb.putLong(value); bao.write(tmp,0,tmp_bb.position());
-		}
-		
-		private final void encode_float(ByteArrayOutputStream bao, float value) {
-			tmp_bb.clear(); tmp_bb.putFloat(value); bao.write(tmp,0,tmp_bb.position());
-		}
-
-		// parse data from ByteBuffer
-		public final HashMap<String,Object> parse_map(byte[] data){
-			ByteBuffer bb = ByteBuffer.wrap(data);
-			bb.position(0);
-			//
-			HashMap<String,Object> map = new HashMap<String,Object>();
-			while( bb.remaining() > 0 ){
-				int t =  bb.getInt();
-				if( t < 0 || t > 7 ) break;
-				String key = parse_string(bb);
-				switch(t){
-				case 0: map.put(key,null); break;
-				case 1: map.put(key,true); break;
-				case 2: map.put(key,false); break;
-				case 3: map.put(key,bb.getInt()); break;
-				case 4: map.put(key,bb.getLong()); break;
-				case 5: map.put(key,bb.getFloat()); break;
-				case 6: map.put(key,parse_string(bb)); break;
-				case 7: map.put(key,parse_string_set(bb)); break;
-				}
-			}
-			return map;
-		}
-		
-		// encode map to bytes
-		@SuppressWarnings("unchecked")
-		public final byte[] encode_map(Map<String,?> map){
-			ByteArrayOutputStream bao = new ByteArrayOutputStream();
-			for( Map.Entry<String,?> entry : map.entrySet() ){
-				String key = entry.getKey();
-				Object value = entry.getValue();
-				if( value == null ){
-					encode_int( bao,0 );
-					endoce_string(bao,key);
-				}else if( value instanceof Boolean ){
-					if( (Boolean)value ){
-						encode_int( bao,1 );
-						endoce_string(bao,key);
-					}else{
-						encode_int( bao,2 );
-						endoce_string(bao,key);
-					}
-				}else if( value instanceof Integer ){
-					encode_int( bao,3 );
-					endoce_string(bao,key);
-					encode_int( bao, (Integer)value );
-				}else if( value instanceof Long ){
-					encode_int( bao,4 );
-					endoce_string(bao,key);
-					encode_long( bao, (Long)value );
-				}else if( value instanceof Float ){
-					encode_int( bao,5 );
-					endoce_string(bao,key);
-					encode_float( bao, (Float)value );
-				}else if( value instanceof String ){
-					encode_int( bao,6 );
-					endoce_string(bao,key);
-					endoce_string( bao, (String)value );
-				}else if( value instanceof Set<?> ){
-					encode_int( bao,7 );
-					endoce_string(bao,key);
-					endoce_string_set( bao, (Set<String>)value );
-				}else{
-					throw new RuntimeException("unsupported data type:"+value.getClass().getName());
-				}
-			}
-			encode_int( bao,-1 ); // end marker
-			return bao.toByteArray();
-		}
-	}
-
-
-}
-
-
+/*
+	キーと値のマップを保持するタイプの設定管理クラスです。
+	- インタフェースは SharedPreferences とおおむね互換があります。
+	- ファイル更新部分は複数プロセスからの読み書きに対応しています。
+	
+	- getXXX() はファイルが更新されていなければロックを取らずに、不変のスナップショットから値を返します。
+	  多くの値をまとめて読む場合は getSnapshot() や getMany() を使うとバージョンの確認が１回で済みます。
+	- setLogMode(true) にすると、commit/apply は変更分だけをファイルに追記します。
+	  ログのあるファイルはログモードを使わないプロセスからも読み書きできます。
+	- setMappedRead(true) にすると、データ領域をマップして読み込み時のコピーを省きます。
+	- incrementAndGet(), compareAndSet(), updateIfAbsent() は１つのキーを１回のトランザクションの中で読んで更新します。
+	  getLong() してから commit() するのと違い、他のプロセスの更新と競合しません。
+	  addCounter() はヘッダのカウンタ領域を使い、データ全体を書き直さずに加算します。
+	- setDurability() で書き込み時の同期を減らせます。失ってもよいキャッシュのような設定向けです。
+	- setIndexedFormat(true) にすると、キーのインデックス付きの形式で書き込みます。
+	  この形式のファイルを読み込んだ時は、値は取得された時にその項目だけをデコードします。
+	- OnSharedPreferenceChangeListener は他のプロセスによる変更も通知します。
+	  リスナの数に関わらず、ファイルごとに１つの監視スレッドがヘッダのバージョン番号を確認します。
+	  リスナは変更を検出したスレッドから呼ばれます。UIスレッドとは限りません。
+	  再読み込みでは前のスナップショットと比べながらデコードし、変わらない値のオブジェクトは使い回します。
+	
+	ただし制限がいくつかあります。
+	- SharedPreferences.Editor#commit の呼び出しスレッドから直接ファイルアクセスを行います。STRICTモードだと問題があるかもしれません。
+	  SharedPreferences.Editor#apply はメモリ上のマップに即座に反映し、ファイルへの書き込みはバックグラウンドで行います。
+	  連続した apply() は１回のトランザクションにまとめて書き込まれます。
+	- 書き込みは順序を保つためインスタンスごとに１つずつ行い、TransactionalFileAccess のグループコミットは使いません。
+	  多くのスレッドから同時に commit() しても１回ずつ書き込まれるので、まとめたい場合は apply() を使ってください。
+	- 継承元インタフェースの制限により、エラー時にIOExceptionではなくRuntimeExceptionを投げる場合があります
+*/
+
+package jp.juggler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jp.juggler.util.TransactionalFileAccess;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+public class ConfigurationFileSP implements SharedPreferences{
+	static final String TAG="ConfigurationFileSP";
+	
+	///////////////////////////////////////////////////
+	// スレッド間でのインスタンスの共用
+
+	// getInstance() ごとに参照カウントを増やすので、使い終わったら release() を呼ぶこと
+	// other_read はそのパスで最初にインスタンスを作った時の指定が使われる
+	private static HashMap<String,ConfigurationFileSP> file_map = new HashMap<String,ConfigurationFileSP>();
+	public static ConfigurationFileSP getInstance(String path,boolean other_read) throws IOException{
+		String key = new File(path).getCanonicalPath();
+		synchronized (file_map) {
+			ConfigurationFileSP instance = file_map.get(key);
+			if( instance == null ){
+				instance = new ConfigurationFileSP(key,other_read);
+				file_map.put(key,instance);
+			}
+			++instance.ref_count;
+			return instance;
+		}
+	}
+	
+	// 参照カウントを減らす。最後の参照なら保留中の apply() を書き込んでファイルを閉じる
+	// release() した後のインスタンスは使わないこと
+	public void release(){
+		synchronized (file_map) {
+			if( ref_count <= 0 ) throw new IllegalStateException("already released.");
+			if( --ref_count > 0 ) return;
+			file_map.remove(path);
+		}
+		flush_pending();
+		synchronized(listeners){
+			listeners.clear();
+			datafile.removeUpdateListener(update_listener);
+		}
+		datafile.close();
+	}
+	
+	// 開いているインスタンスの数
+	public static int getOpenInstanceCount(){
+		synchronized (file_map) {
+			return file_map.size();
+		}
+	}
+	
+	// このインスタンスの参照カウント
+	public int getRefCount(){
+		synchronized (file_map) {
+			return ref_count;
+		}
+	}
+
+	//////////////////////////////////////////////////////////
+	
+	// Encoder は状態を持たないので、全てのスレッドとインスタンスで共用する
+	static final Encoder encoder = new Encoder();
+	final TransactionalFileAccess datafile;
+	final String path;
+	// 読み直しのたびに同じキーの文字列を作らないよう、このファイルのキーを覚えておく
+	final KeyDictionary key_dictionary = new KeyDictionary();
+	private int ref_count = 0;
+	
+	// 読み込み側に公開するスナップショット。作成後は変更しない
+	// getSnapshot() で取得すると、複数の値を同じバージョンから読み出せる
+	public static final class Snapshot{
+		final Map<String,Object> map;
+		final ValueStore store; // map が ValueStore なら数値をボックス化せずに読む
+		final int version; // 読み込んだ時点のファイルのバージョン
+		final HashSet<String> changed; // 読み込み時に求めた、前のスナップショットから変わったかもしれないキー。不明ならnull
+		
+		Snapshot(Map<String,Object> map,int version){
+			this(map,version,null);
+		}
+		
+		Snapshot(Map<String,Object> map,int version,HashSet<String> changed){
+			this.map = map;
+			this.store = ( map instanceof ValueStore ? (ValueStore)map : null );
+			this.version = version;
+			this.changed = changed;
+		}
+		
+		public int getVersion(){
+			return version;
+		}
+		
+		public Map<String, ?> getAll() {
+			return new HashMap<String, Object>(map);
+		}
+		
+		// 指定したキーのうち、値が存在するものだけを返す
+		public Map<String, ?> getMany(Collection<String> keys) {
+			HashMap<String,Object> result = new HashMap<String,Object>();
+			for( String key : keys ){
+				Object v = map.get(key);
+				if( v != null || map.containsKey(key) ) result.put(key,v);
+			}
+			return result;
+		}
+		
+		public boolean contains(String key)  {
+			return map.containsKey(key);
+		}
+		
+		public boolean getBoolean(String key, boolean defValue) {
+			if( store != null ) return store.getBoolean(key,defValue);
+			Boolean v = (Boolean)map.get(key);
+			return v != null ? v : defValue;
+		}
+		
+		public float getFloat(String key, float defValue) {
+			if( store != null ) return store.getFloat(key,defValue);
+			Float v = (Float)map.get(key);
+			return v != null ? v : defValue;
+		}
+		
+		public int getInt(String key, int defValue) {
+			if( store != null ) return store.getInt(key,defValue);
+			Integer v = (Integer)map.get(key);
+			return v != null ? v : defValue;
+		}
+		
+		public long getLong(String key, long defValue) {
+			if( store != null ) return store.getLong(key,defValue);
+			Long v = (Long)map.get(key);
+			return v != null ? v : defValue;
+		}
+		
+		public String getString(String key, String defValue) {
+			String v = (String)map.get(key);
+			return v != null ? v : defValue;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			Set<String> v = (Set<String>) map.get(key);
+			return v != null ? v : defValues;
+		}
+	}
+	private volatile Snapshot mSnapshot = null;
+
+	private ConfigurationFileSP(String path,boolean other_read) throws IOException{
+		this.path = path;
+		this.datafile = new TransactionalFileAccess(
+				path
+				,(other_read ? 0664 : 0660 )
+				,true
+		);
+		// ログモードを使わないプロセスでもログ付きのファイルを読めるようにする
+		datafile.setLogCompactor(log_compactor);
+	}
+	
+	// ログモードでは変更分だけをファイルに追記する。
+	// compact_ratio はログがスナップショットの何倍を超えたら書き直すか
+	volatile boolean bLogMode = false;
+	public void setLogMode(boolean bLogMode){
+		this.bLogMode = bLogMode;
+	}
+	public void setLogMode(boolean bLogMode,float compact_ratio){
+		datafile.setCompactRatio(compact_ratio);
+		this.bLogMode = bLogMode;
+	}
+	
+	// インデックス付きの形式で書き込む。読み込み時は形式を自動判別する
+	// この形式のファイルは、この形式に対応していない古いバージョンからは読めない
+	volatile boolean bIndexedFormat = false;
+	public void setIndexedFormat(boolean bIndexedFormat){
+		this.bIndexedFormat = bIndexedFormat;
+	}
+	
+	// データ領域をマップして読み込む。読み込み時にファイルの内容をコピーしない
+	// マップしたビューは読み込みのロックを持っている間にデコードするので、インデックス付きの形式でも遅延デコードしない
+	public void setMappedRead(boolean bMappedRead){
+		datafile.setMappedRead(bMappedRead);
+	}
+	
+	// 書き込み時のダイジェストの種類 (TransactionalFileAccess.digest_xxx)
+	public void setDigestType(int type){
+		datafile.setDigestType(type);
+	}
+	
+	// スナップショットを一時ファイルに書いて rename で置き換える。バックアップファイルへの２重書きが無くなる
+	// この形式のファイルは、この形式に対応していない古いバージョンからは読めない
+	public void setSnapshotFile(boolean bSnapshotFile){
+		datafile.setSnapshotFile(bSnapshotFile);
+	}
+	
+	// ファイルアクセスの計測値の受け取り先。null なら計測しない
+	public void setMetrics(TransactionalFileAccess.Metrics metrics){
+		datafile.setMetrics(metrics);
+	}
+	
+	// 書き込みの永続性 (TransactionalFileAccess.durability_xxx)
+	// キャッシュのように失ってもよい設定なら、同期を減らして commit() を速くできる
+	public void setDurability(int durability){
+		datafile.setDurability(durability);
+	}
+	
+	private byte[] encode_map(Map<String,?> map){
+		return bIndexedFormat ? encoder.encode_map_indexed(map) : encoder.encode_map(map);
+	}
+	
+	// スレッドごとの出力バッファにエンコードする。同じスレッドで次にエンコードするまで有効
+	private ByteBuffer encode_map_buffer(Map<String,?> map){
+		return bIndexedFormat ? encoder.encode_map_indexed_buffer(map) : encoder.encode_map_buffer(map);
+	}
+	
+	// スナップショットとログを合成する
+	private final TransactionalFileAccess.LogCompactor log_compactor = new TransactionalFileAccess.LogCompactor() {
+		@Override
+		public byte[] compact(byte[] snapshot, List<byte[]> records) {
+			ValueStore map = encoder.parse_store(ByteBuffer.wrap(snapshot),key_dictionary);
+			for( byte[] record : records ){
+				encoder.apply_delta(map,record,key_dictionary);
+			}
+			return encode_map(map);
+		}
+	};
+	
+	// ファイルを削除して作成し直す
+	/*package access*/ TransactionalFileAccess getDataFile(){
+		return datafile;
+	}
+	
+	// ファイルを削除して作成し直す
+	public void create() throws IOException{
+		datafile.create();
+		reload();
+	}
+	
+	// 設定データをバイト配列にまとめてエクスポートする。
+	public byte[] exportBytes(){
+		return encoder.encode_map(getAll());
+	}
+
+	// exportBytes()由来のデータを設定データとして読み込む。
+	public void importBytes(byte[] data){
+		importMap(encoder.parse_map(data));
+	}
+	
+	// SharedPreferencesなど外部から提供されたmapのデータをインポートする。
+	public void importMap(Map<String,?> src){
+		ConfigurationEditorSP e = (ConfigurationEditorSP)edit();
+		for(Map.Entry<String,?> entry : src.entrySet() ){
+			e.mModified.put(entry.getKey(),entry.getValue());
+		}
+		e.commit();
+	}
+	
+	///////////////////////////////////////////////////
+	// 公開インタフェース
+	
+	@Override
+	public Map<String, ?> getAll() {
+		return read_snapshot().getAll();
+	}
+
+	@Override
+	public boolean contains(String key)  {
+		return read_snapshot().contains(key);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return read_snapshot().getBoolean(key,defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return read_snapshot().getFloat(key,defValue);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return read_snapshot().getInt(key,defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return read_snapshot().getLong(key,defValue);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return read_snapshot().getString(key,defValue);
+	}
+	
+	@Override
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return read_snapshot().getStringSet(key,defValues);
+	}
+	
+	// 現在のスナップショットを返す。バージョンの確認は１回だけで、以降の読み出しはロックもファイルアクセスもしない
+	// 他のプロセスやスレッドの変更は、次に getSnapshot() を呼ぶまで反映されない
+	public Snapshot getSnapshot(){
+		return read_snapshot();
+	}
+	
+	// getSnapshot() と同じだが、読み直しにファイルのロックが必要で timeout ミリ秒待っても取れなければ、手元の古いスナップショットを返す
+	// 一度も読み込んでいなければ null を返す。ロックを取れた場合は差分ではなく全体を読み直す
+	public Snapshot getSnapshot(long timeout){
+		Snapshot s = mSnapshot;
+		if( s != null && s.version == datafile.peek_version() ) return s;
+		HashSet<String> changed;
+		try{
+			synchronized(this){
+				s = mSnapshot;
+				if( s != null && s.version == datafile.peek_version() ) return s;
+				Snapshot loaded = datafile.tryLoadLog(log_reader,timeout);
+				if( loaded == null ) return s;
+				changed = set_snapshot(loaded);
+				s = mSnapshot;
+			}
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+		notify_listeners(changed);
+		return s;
+	}
+	
+	// 複数のキーの値を同じバージョンからまとめて読み出す。存在しないキーは結果に含まれない
+	public Map<String, ?> getMany(Collection<String> keys){
+		return read_snapshot().getMany(keys);
+	}
+
+	// 読み込み用のスナップショットを取得する
+	// ファイルのバージョンがスナップショットと同じならロックを取らない
+	private Snapshot read_snapshot(){
+		Snapshot s = mSnapshot;
+		if( s != null && s.version == datafile.peek_version() ) return s;
+		check_update();
+		return mSnapshot;
+	}
+
+	/////////////////////////////////////////////////////
+	// リスナの管理
+	
+	// 登録されたリスナ。SharedPreferences と同様に弱参照で保持する
+	private final WeakHashMap<OnSharedPreferenceChangeListener,Object> listeners = new WeakHashMap<OnSharedPreferenceChangeListener,Object>();
+
+	// ファイルの更新通知。リスナが何個あってもファイルの監視は１つだけ
+	private final TransactionalFileAccess.UpdateListener update_listener = new TransactionalFileAccess.UpdateListener() {
+		@Override
+		public void onUpdate(TransactionalFileAccess file) {
+			try{
+				check_update();
+			}catch(Throwable ex){
+				ex.printStackTrace();
+			}
+			// 変更がなく notify_listeners() まで進まなかった場合も、リスナが消えていれば監視をやめる
+			synchronized(listeners){
+				if( listeners.isEmpty() ) datafile.removeUpdateListener(update_listener);
+			}
+		}
+	};
+
+	// リスナは変更を検出したスレッド(ファイル監視スレッドや、commit/apply の呼び出しスレッド)から呼ばれます
+	@Override
+	public void registerOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
+		// 変更の比較元になるマップを先に読んでおく
+		check_update();
+		synchronized(listeners){
+			listeners.put(listener,this);
+			if( listeners.size() == 1 ) datafile.addUpdateListener(update_listener);
+		}
+	}
+
+	// removeUpdateListener() は監視スレッドの終了を待たないので、監視スレッドが notify_listeners() で
+	// listeners のロックを待っていてもデッドロックしない
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
+		synchronized(listeners){
+			listeners.remove(listener);
+			if( listeners.isEmpty() ) datafile.removeUpdateListener(update_listener);
+		}
+	}
+	
+	private boolean hasListeners(){
+		synchronized(listeners){
+			return !listeners.isEmpty();
+		}
+	}
+
+	// 変更されたキーをリスナに通知する。インスタンスのロックを持たない状態で呼び出すこと
+	private void notify_listeners(Set<String> keys){
+		if( keys == null || keys.isEmpty() ) return;
+		ArrayList<OnSharedPreferenceChangeListener> list;
+		synchronized(listeners){
+			// WeakHashMap#isEmpty() は GC されたリスナを取り除いてから数える。
+			// unregister されずに全てのリスナが消えていたら、ファイルの監視をやめる
+			if( listeners.isEmpty() ){
+				datafile.removeUpdateListener(update_listener);
+				return;
+			}
+			list = new ArrayList<OnSharedPreferenceChangeListener>(listeners.keySet());
+		}
+		for( String key : keys ){
+			for( OnSharedPreferenceChangeListener listener : list ){
+				listener.onSharedPreferenceChanged(this,key);
+			}
+		}
+	}
+
+	// ２つのマップで値が異なるキーを列挙する
+	static HashSet<String> diff_keys(Map<String,?> old_map,Map<String,?> new_map){
+		HashSet<String> keys = new HashSet<String>();
+		for( Map.Entry<String,?> entry : new_map.entrySet() ){
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if( !old_map.containsKey(key) ){
+				keys.add(key);
+			}else{
+				Object old_value = old_map.get(key);
+				if( value == null ? old_value != null : !value.equals(old_value) ) keys.add(key);
+			}
+		}
+		for( String key : old_map.keySet() ){
+			if( !new_map.containsKey(key) ) keys.add(key);
+		}
+		return keys;
+	}
+	
+	// 変わったかもしれないキーの中から、実際に値が異なるキーを残す。candidates が null なら全体を比べる
+	static HashSet<String> diff_keys(Map<String,?> old_map,Map<String,?> new_map,Collection<String> candidates){
+		if( candidates == null ) return diff_keys(old_map,new_map);
+		HashSet<String> keys = new HashSet<String>();
+		for( String key : candidates ){
+			boolean bOld = old_map.containsKey(key);
+			if( bOld != new_map.containsKey(key) ){
+				keys.add(key);
+			}else if( bOld ){
+				Object value = new_map.get(key);
+				Object old_value = old_map.get(key);
+				if( value == null ? old_value != null : !value.equals(old_value) ) keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	///////////////////////////////////////////////////////////////
+	
+	@Override
+	public Editor edit() {
+		return new ConfigurationEditorSP();
+	}
+
+    public final class ConfigurationEditorSP implements SharedPreferences.Editor {
+    	public Editor putString(String key, String value) {
+    		synchronized (this) {
+    			mModified.put(key, value);
+    			return this;
+    		}
+    	}
+    	public Editor putStringSet(String key, Set<String> values) {
+   	          synchronized (this) {
+   	        	  mModified.put(key, values);
+   	        	  return this;
+   	          }
+    	}
+    	public Editor putInt(String key, int value) {
+    		synchronized (this) {
+    			mModified.put(key, value);
+    			return this;
+    		}
+    	}
+    	public Editor putLong(String key, long value) {
+    		synchronized (this) {
+    			mModified.put(key, value);
+    			return this;
+    		}
+    	}
+    	public Editor putFloat(String key, float value) {
+    		synchronized (this) {
+    			mModified.put(key, value);
+    			return this;
+    		}
+    	}
+    	public Editor putBoolean(String key, boolean value) {
+    		synchronized (this) {
+    			mModified.put(key, value);
+    			return this;
+    		}
+    	}
+    	
+        public Editor remove(String key) {
+            synchronized (this) {
+            	// 「削除された」を示す値はこのEditor自身
+                mModified.put(key, this);
+                return this;
+            }
+        }
+        
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+                return this;
+            }
+        }
+
+        /////////////////////////////////////////////////////////
+         
+        public boolean mClear = false;
+    	public HashMap<String, Object> mModified = new HashMap<String,Object>();
+
+		@Override
+		public void apply() {
+			save_background(this);
+		}
+
+		@Override
+		public boolean commit() {
+			return save_foreground(this);
+		}
+    }
+    
+    //////////////////////////////////////////////////////////////////////
+
+	public void reload() {
+		HashSet<String> changed;
+		try{
+			synchronized(this){
+				changed = set_snapshot(datafile.load_log(log_reader));
+			}
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+		notify_listeners(changed);
+	}
+	
+	// ファイルが更新されていれば読み直す
+	// 複数のスレッドが同時に呼び出しても、読み込みを行うのは１スレッドだけ
+	void check_update(){
+		HashSet<String> changed;
+		try{
+			synchronized(this){
+				Snapshot s = mSnapshot;
+				if( s == null ){
+					changed = set_snapshot(datafile.load_log(log_reader));
+				}else{
+					// 待っている間に他のスレッドが読み込みを終えていれば何もしない
+					if( s.version == datafile.peek_version() ) return;
+					// 差分はスナップショットのバージョンから読む。書き込み処理などが先にファイルを読んでいれば全体を読む
+					Snapshot loaded = datafile.load_log_if_update(log_reader,s.version);
+					if( loaded == null ) return;
+					changed = set_snapshot(loaded);
+				}
+			}
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+		notify_listeners(changed);
+	}
+	
+	// 読んだスナップショットとレコードからマップを作る。読み込みのロックを持ったまま呼ばれる
+	private final TransactionalFileAccess.LogReader<Snapshot> log_reader = new TransactionalFileAccess.LogReader<Snapshot>() {
+		@Override
+		public Snapshot read(TransactionalFileAccess.LogData data) {
+			return parse_log(data);
+		}
+	};
+	
+	// ログが追記されただけなら、現在のマップにレコードを適用する
+	// インデックス付きの形式なら値は必要になった時にデコードする
+	// 前のスナップショットがあれば比べながらデコードして、値が変わらないエントリは前の値のオブジェクトを使い回す
+	// 変わったキーはスナップショットに記録してリスナへの通知に使う
+	private Snapshot parse_log(TransactionalFileAccess.LogData data){
+		Snapshot prev = mSnapshot;
+		ValueStore base = ( prev == null ? null : prev.store );
+		HashSet<String> changed = ( base == null ? null : new HashSet<String>() );
+		ValueStore map;
+		ValueStore compare_to;
+		if( data.snapshot != null ){
+			Map<String,Object> view;
+			if( base != null && !Encoder.is_indexed(data.snapshot) ){
+				view = encoder.parse_store(data.snapshot,key_dictionary,base,changed);
+			}else{
+				view = encoder.parse_map_view(data.snapshot,key_dictionary);
+				changed = null;
+			}
+			if( data.records.isEmpty() ) return new Snapshot(view,data.version,changed);
+			// 読んだばかりの ValueStore はそのまま変更してよい
+			map = ( view instanceof ValueStore ) ? (ValueStore)view : new ValueStore(view);
+			compare_to = ( changed == null ? null : base );
+		}else{
+			// ログが追記されただけなら、変わったのはレコードのキーだけ
+			map = new ValueStore(prev.map);
+			changed = new HashSet<String>();
+			compare_to = map;
+		}
+		for( byte[] record : data.records ){
+			encoder.apply_delta(map,record,key_dictionary,compare_to,changed);
+		}
+		return new Snapshot(map,data.version,changed);
+	}
+	
+	// ファイルから読んだマップに、まだ書き込まれていない apply() の変更を重ねてから公開する
+	// リスナがいれば変更されたキーを返す
+	private HashSet<String> set_snapshot(Snapshot loaded){
+		Map<String,Object> map = loaded.map;
+		// 変わったかもしれないキー。読み込み時に分かっていれば、全体を比べずに済む
+		HashSet<String> candidates = loaded.changed;
+		if( !pending_list.isEmpty() ){
+			if( !(map instanceof ValueStore) ) map = new ValueStore(map);
+			for( ConfigurationEditorSP cset : pending_list ){
+				merge_editor(map,cset);
+				if( cset.mClear ){
+					candidates = null;
+				}else if( candidates != null ){
+					candidates.addAll(cset.mModified.keySet());
+				}
+			}
+		}
+		Snapshot old = mSnapshot;
+		HashSet<String> changed = null;
+		if( old != null && hasListeners() ) changed = diff_keys(old.map,map,candidates);
+		mSnapshot = new Snapshot(map,loaded.version);
+		return changed;
+	}
+	
+	// エディタの変更内容をマップに反映する
+	static void merge_editor(Map<String,Object> map,ConfigurationEditorSP cset){
+		if( cset.mClear ) map.clear();
+		for( Map.Entry<String,Object> entry : cset.mModified.entrySet() ){
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if( value == cset ){
+				map.remove(key);
+			}else{
+				map.put(key,value);
+			}
+		}
+	}
+	
+	///////////////////////////////////////////////////////////////
+	// 書き込み
+	
+	// apply() で保留されている変更。ファイルへの書き込みが終わるまでメモリ上のマップに重ねて使う
+	private final ArrayList<ConfigurationEditorSP> pending_list = new ArrayList<ConfigurationEditorSP>();
+	private boolean pending_scheduled = false;
+
+	// 書き込みの順序を保つためのロック。読み込み側(this)とは分けてある
+	private final Object write_lock = new Object();
+
+	// apply() の書き込みを行うスレッド。全インスタンスで１つを共有する
+	private static ExecutorService writer_thread;
+	private static synchronized ExecutorService getWriterThread(){
+		if( writer_thread == null ){
+			writer_thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"ConfigurationFileSP-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return writer_thread;
+	}
+	
+	void save_background(final ConfigurationEditorSP src){
+		// 呼び出し元がエディタを使い回しても影響しないようコピーする
+		ConfigurationEditorSP cset = new ConfigurationEditorSP();
+		synchronized(src){
+			cset.mClear = src.mClear;
+			for( Map.Entry<String,Object> entry : src.mModified.entrySet() ){
+				Object value = entry.getValue();
+				cset.mModified.put( entry.getKey(), value == src ? cset : value );
+			}
+		}
+		check_update();
+		HashSet<String> changed = null;
+		boolean bSchedule;
+		synchronized(this){
+			// メモリ上のマップには即座に反映する
+			Snapshot old = mSnapshot;
+			ValueStore map = new ValueStore(old.map);
+			merge_editor(map,cset);
+			if( hasListeners() ) changed = diff_keys(old.map,map,cset.mClear ? null : cset.mModified.keySet());
+			mSnapshot = new Snapshot(map,old.version);
+			// ファイルへの書き込みは後で、溜まった分をまとめて行う
+			pending_list.add(cset);
+			bSchedule = !pending_scheduled;
+			pending_scheduled = true;
+		}
+		notify_listeners(changed);
+		if( !bSchedule ) return;
+		getWriterThread().execute(new Runnable() {
+			@Override
+			public void run() {
+				flush_pending();
+			}
+		});
+	}
+	
+	// 保留中の apply() をまとめて１回のトランザクションで書き込む
+	/*package access*/ void flush_pending(){
+		synchronized(write_lock){
+			ArrayList<ConfigurationEditorSP> list;
+			synchronized(this){
+				pending_scheduled = false;
+				if( pending_list.isEmpty() ) return;
+				list = new ArrayList<ConfigurationEditorSP>(pending_list);
+			}
+			try{
+				write_editors(list);
+			}catch(Throwable ex){
+				Log.e(TAG,"background update failed. "+list.size()+" edit(s) discarded.",ex);
+				synchronized(this){
+					pending_list.subList(0,list.size()).clear();
+				}
+				try{
+					reload();
+				}catch(Throwable ex2){
+					ex2.printStackTrace();
+				}
+				return;
+			}
+			synchronized(this){
+				pending_list.subList(0,list.size()).clear();
+			}
+		}
+	}
+	
+	boolean save_foreground(final ConfigurationEditorSP cset){
+		try{
+			synchronized(write_lock){
+				// 先に apply() された変更を追い越さないよう、保留中の変更と一緒に書き込む
+				ArrayList<ConfigurationEditorSP> list;
+				synchronized(this){
+					list = new ArrayList<ConfigurationEditorSP>(pending_list);
+				}
+				int nPending = list.size();
+				list.add(cset);
+				write_editors(list);
+				synchronized(this){
+					pending_list.subList(0,nPending).clear();
+				}
+			}
+			check_update();
+			return true;
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	// エディタのリストを順に適用して１回のトランザクションで書き込む
+	// ログモードではまとめて１つの差分レコードにして追記する
+	private void write_editors(final List<ConfigurationEditorSP> list) throws IOException{
+		if( bLogMode ){
+			datafile.append(encode_delta(list));
+			return;
+		}
+		// エンコードしたデータは出力バッファからコピーせずに書き込む
+		datafile.transactionBuffer(new TransactionalFileAccess.BufferTransactionProc() {
+			@Override
+			public ByteBuffer update(byte[] old_data){
+				ValueStore map_new;
+				if( old_data == null ){
+					map_new = new ValueStore();
+				}else{
+					map_new = encoder.parse_store(ByteBuffer.wrap(old_data),key_dictionary);
+				}
+				for( ConfigurationEditorSP cset : list ){
+					merge_editor(map_new,cset);
+				}
+				return encode_map_buffer(map_new);
+			}
+		});
+	}
+	
+	///////////////////////////////////////////////////////////////
+	// １つのキーの不可分な更新
+	// ファイルのロックを持ったまま現在の値を読んで新しい値を決めるので、他のプロセスの更新と競合しない。
+	// ログモードでも差分の追記ではなく、トランザクションで全体を書き直す
+
+	// 現在の値から新しい値を決める。値がなければ null が渡される。
+	// 変更しない場合は current をそのまま返す。null を返すとキーを削除する
+	interface ValueUpdater{
+		Object update(Object current);
+	}
+
+	// 値を更新して、更新前の値を返す
+	private Object update_value(final String key,final ValueUpdater updater){
+		final Object[] result = new Object[1];
+		try{
+			synchronized(write_lock){
+				// 先に apply() された変更を追い越さないよう、保留中の変更と一緒に書き込む
+				final ArrayList<ConfigurationEditorSP> list;
+				synchronized(this){
+					list = new ArrayList<ConfigurationEditorSP>(pending_list);
+				}
+				datafile.transactionBuffer(new TransactionalFileAccess.BufferTransactionProc() {
+					@Override
+					public ByteBuffer update(byte[] old_data){
+						ValueStore map_new;
+						if( old_data == null ){
+							map_new = new ValueStore();
+						}else{
+							map_new = encoder.parse_store(ByteBuffer.wrap(old_data),key_dictionary);
+						}
+						for( ConfigurationEditorSP cset : list ){
+							merge_editor(map_new,cset);
+						}
+						Object current = map_new.get(key);
+						Object value = updater.update(current);
+						result[0] = current;
+						// 変更がなければ書き込まない
+						if( value == current && list.isEmpty() ) return null;
+						if( value == null ){
+							map_new.remove(key);
+						}else{
+							map_new.put(key,value);
+						}
+						return encode_map_buffer(map_new);
+					}
+				});
+				synchronized(this){
+					pending_list.subList(0,list.size()).clear();
+				}
+			}
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+		check_update();
+		return result[0];
+	}
+
+	// long の値に delta を加えて、加えた後の値を返す。値がなければ 0 に加える
+	// long 以外の値があれば ClassCastException
+	public long incrementAndGet(String key,final long delta){
+		Long old = (Long)update_value(key,new ValueUpdater() {
+			@Override
+			public Object update(Object current) {
+				long v = ( current == null ? 0 : (Long)current );
+				return v + delta;
+			}
+		});
+		return ( old == null ? 0 : old ) + delta;
+	}
+
+	// 値が expected と等しければ new_value に変更して true を返す
+	// expected が null なら値がない場合に、new_value が null なら削除する
+	public boolean compareAndSet(String key,final Object expected,final Object new_value){
+		// 値が違うなら、最新のスナップショットで判断できる
+		Object current = read_snapshot().map.get(key);
+		if( expected == null ? current != null : !expected.equals(current) ) return false;
+		final boolean[] bSet = new boolean[1];
+		update_value(key,new ValueUpdater() {
+			@Override
+			public Object update(Object current) {
+				bSet[0] = ( expected == null ? current == null : expected.equals(current) );
+				return bSet[0] ? new_value : current;
+			}
+		});
+		return bSet[0];
+	}
+
+	// 値がなければ value を設定して true を返す。既に値があれば何もせず false を返す
+	public boolean updateIfAbsent(String key,Object value){
+		if( value == null ) throw new IllegalArgumentException("value is null.");
+		return compareAndSet(key,null,value);
+	}
+
+	// ヘッダのカウンタ領域にある名前付きのカウンタに加算して、加算後の値を返す
+	// マップのキーとは別の名前空間で、データ全体を書き直さずに８バイトの書き込みだけで済む
+	// カウンタの変更はリスナに通知されない。カウンタの数には上限がある(TransactionalFileAccess.counter_slots)
+	public long addCounter(String name,long delta){
+		try{
+			return datafile.counter_add(name,delta);
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public long getCounter(String name){
+		try{
+			return datafile.counter_get(name);
+		}catch(IOException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+
+	// エディタのリストを１つの差分レコードにする
+	private byte[] encode_delta(List<ConfigurationEditorSP> list){
+		boolean bClear = false;
+		HashMap<String,Object> changes = new HashMap<String,Object>();
+		for( ConfigurationEditorSP cset : list ){
+			if( cset.mClear ){
+				bClear = true;
+				changes.clear();
+			}
+			for( Map.Entry<String,Object> entry : cset.mModified.entrySet() ){
+				Object value = entry.getValue();
+				changes.put( entry.getKey(), value == cset ? Encoder.removed_marker : value );
+			}
+		}
+		return encoder.encode_delta(bClear,changes);
+	}
+	
+	////////////////////////////////////////////////////////////
+	// マップとバイト配列のエンコード/デコード
+	
+	public static final class Encoder{
+		public static final int tmp_size = 1000;
+		public static final String UTF8="UTF-8";
+		
+		// 差分レコードで「削除された」を示す値
+		public static final Object removed_marker = new Object();
+		// 差分レコードのフラグ
+		public static final int delta_clear = 1;
+		// インデックス付き形式の先頭に置く値。古い形式ではデータ型の値が来る位置
+		public static final int indexed_magic = 0x53504958; // "SPIX"
+		
+		// 出力バッファの初期サイズと、使い終わった後も保持する最大サイズ
+		public static final int out_initial_size = 4096;
+		public static final int out_keep_size = 1024 * 1024;
+		
+		// Encoder 自体は状態を持たない。作業用のバッファはスレッドごとに持つので、
+		// １つの Encoder を複数のスレッドから同時に使える
+		private static final ThreadLocal<Output> local_output = new ThreadLocal<Output>(){
+			@Override
+			protected Output initialValue() {
+				return new Output();
+			}
+		};
+		
+		private final String parse_string(ByteBuffer bb ){
+			try{
+				int bytesize = bb.getInt();
+				if( bb.hasArray() ){
+					// ヒープのバッファは配列から直接デコードする
+					int pos = bb.position();
+					if( bytesize > bb.remaining() ) throw new BufferUnderflowException();
+					bb.position(pos + bytesize);
+					return new String(bb.array(),bb.arrayOffset()+pos,bytesize,UTF8);
+				}else{
+					// マップしたビューなど
+					byte[] b = bytesize <= tmp_size ? local_output.get().tmp : new byte[bytesize];
+					bb.get(b,0,bytesize);
+					return new String(b,0,bytesize,UTF8);
+				}
+			}catch(UnsupportedEncodingException ex){
+				throw new RuntimeException(ex);
+				// 発生しない
+			}
+		}
+		// キーを読む。辞書があれば同じバイト列のキーには同じ String を返す
+		private final String parse_key(ByteBuffer bb,KeyDictionary dict){
+			if( dict == null ) return parse_string(bb);
+			int bytesize = bb.getInt();
+			int pos = bb.position();
+			if( bytesize > bb.remaining() ) throw new BufferUnderflowException();
+			bb.position(pos + bytesize);
+			return dict.get(bb,pos,bytesize);
+		}
+		private final Set<String> parse_string_set(ByteBuffer bb ){
+			HashSet<String> set = new HashSet<String>();
+			int count = bb.getInt();
+			while(count-- > 0) set.add(parse_string(bb));
+			return set;
+		}
+		
+		// parse data from ByteBuffer
+		public final HashMap<String,Object> parse_map(byte[] data){
+			return parse_map(ByteBuffer.wrap(data),null);
+		}
+		
+		// dict を指定すると、キーの文字列を辞書から再利用する
+		public final HashMap<String,Object> parse_map(byte[] data,KeyDictionary dict){
+			return parse_map(ByteBuffer.wrap(data),dict);
+		}
+		
+		public final HashMap<String,Object> parse_map(ByteBuffer src){
+			return parse_map(src,null);
+		}
+		
+		// マップしたビューなどから直接デコードする。bb の位置は変更しない
+		public final HashMap<String,Object> parse_map(ByteBuffer src,KeyDictionary dict){
+			HashMap<String,Object> map = new HashMap<String,Object>();
+			parse_entries(entries_of(src),map,dict);
+			return map;
+		}
+		
+		// 数値や真偽値をボックス化せずに ValueStore にデコードする
+		public final ValueStore parse_store(ByteBuffer src,KeyDictionary dict){
+			return parse_store(src,dict,null,null);
+		}
+		
+		// prev と比べながらデコードする。値が変わっていない文字列や集合は prev のオブジェクトを使い回す
+		// changed には追加、変更、削除されたキーを追加する
+		public final ValueStore parse_store(ByteBuffer src,KeyDictionary dict,ValueStore prev,Set<String> changed){
+			ValueStore store = new ValueStore();
+			int matched = parse_entries(entries_of(src),store,dict,prev,changed);
+			if( prev != null && changed != null && matched < prev.size() ){
+				// 削除されたキー
+				for( String key : prev.keySet() ){
+					if( !store.containsKey(key) ) changed.add(key);
+				}
+			}
+			return store;
+		}
+		
+		// エントリの先頭に位置を合わせたバッファを返す
+		private static ByteBuffer entries_of(ByteBuffer src){
+			ByteBuffer bb = src.duplicate();
+			bb.position(0);
+			if( is_indexed(bb) ){
+				// インデックスを読み飛ばす
+				int count = bb.getInt(4);
+				bb.position(8 + count * 8);
+			}
+			return bb;
+		}
+		
+		// インデックス付きの形式なら遅延デコードするビューを、古い形式ならValueStoreを返す
+		// マップしたビューは後から内容が変わるので、遅延デコードせずに全体をデコードする
+		public final Map<String,Object> parse_map_view(ByteBuffer bb){
+			return parse_map_view(bb,null);
+		}
+		
+		public final Map<String,Object> parse_map_view(ByteBuffer bb,KeyDictionary dict){
+			if( is_indexed(bb) && bb.hasArray() ) return new IndexedMap(bb,dict);
+			return parse_store(bb,dict);
+		}
+		
+		static boolean is_indexed(ByteBuffer bb){
+			return bb.limit() >= 8 && bb.getInt(0) == indexed_magic;
+		}
+		
+		// 差分レコードをマップに適用する
+		public final void apply_delta(Map<String,Object> map,byte[] record){
+			apply_delta(map,record,null);
+		}
+		
+		public final void apply_delta(Map<String,Object> map,byte[] record,KeyDictionary dict){
+			ByteBuffer bb = ByteBuffer.wrap(record);
+			int flags = bb.getInt();
+			if( (flags & delta_clear) != 0 ) map.clear();
+			parse_entries(bb,map,dict);
+		}
+		
+		// 差分レコードを適用して、prev から値が変わったキーを changed に追加する
+		// prev は適用前の store 自身か、store を作る元になった古いデータ
+		public final void apply_delta(ValueStore store,byte[] record,KeyDictionary dict,ValueStore prev,Set<String> changed){
+			ByteBuffer bb = ByteBuffer.wrap(record);
+			int flags = bb.getInt();
+			if( (flags & delta_clear) != 0 ){
+				if( changed != null ) changed.addAll(store.keySet());
+				store.clear();
+			}
+			parse_entries(bb,store,dict,prev,changed);
+		}
+		
+		private final void parse_entries(ByteBuffer bb,Map<String,Object> map,KeyDictionary dict){
+			if( map instanceof ValueStore ){
+				parse_entries(bb,(ValueStore)map,dict,null,null);
+				return;
+			}
+			while( bb.remaining() > 0 ){
+				int t =  bb.getInt();
+				if( t < 0 || t > 8 ) break;
+				String key = parse_key(bb,dict);
+				switch(t){
+				case 0: map.put(key,null); break;
+				case 1: map.put(key,true); break;
+				case 2: map.put(key,false); break;
+				case 3: map.put(key,bb.getInt()); break;
+				case 4: map.put(key,bb.getLong()); break;
+				case 5: map.put(key,bb.getFloat()); break;
+				case 6: map.put(key,parse_string(bb)); break;
+				case 7: map.put(key,parse_string_set(bb)); break;
+				case 8: map.remove(key); break; // 差分レコードのみ
+				}
+			}
+		}
+		
+		// prev があれば値を比べて、変わったキーを changed に追加する。prev は store 自身でもよい
+		// prev にあったキーの数を返す
+		private final int parse_entries(ByteBuffer bb,ValueStore store,KeyDictionary dict,ValueStore prev,Set<String> changed){
+			int matched = 0;
+			while( bb.remaining() > 0 ){
+				int t =  bb.getInt();
+				if( t < 0 || t > 8 ) break;
+				String key = parse_key(bb,dict);
+				int slot = ( prev == null ? -1 : prev.find(key) );
+				if( slot >= 0 ) ++matched;
+				boolean bChanged;
+				switch(t){
+				default:
+					continue;
+				case 0:
+					bChanged = !prev_match(prev,slot,ValueStore.T_NULL,0);
+					store.put_null(key);
+					break;
+				case 1:
+				case 2:{
+					boolean v = ( t == 1 );
+					bChanged = !prev_match(prev,slot,ValueStore.T_BOOLEAN,v?1:0);
+					store.put_boolean(key,v);
+					break;
+				}
+				case 3:{
+					int v = bb.getInt();
+					bChanged = !prev_match(prev,slot,ValueStore.T_INT,v);
+					store.put_int(key,v);
+					break;
+				}
+				case 4:{
+					long v = bb.getLong();
+					bChanged = !prev_match(prev,slot,ValueStore.T_LONG,v);
+					store.put_long(key,v);
+					break;
+				}
+				case 5:{
+					float v = bb.getFloat();
+					bChanged = !prev_match(prev,slot,ValueStore.T_FLOAT,Float.floatToRawIntBits(v));
+					store.put_float(key,v);
+					break;
+				}
+				case 6:{
+					Object old = ( slot >= 0 ? prev.objs[slot] : null );
+					String v;
+					if( old instanceof String && utf8_equals(bb,(String)old) ){
+						// 同じ文字列なら String を作らない
+						v = (String)old;
+						bb.position(bb.position() + 4 + bb.getInt(bb.position()));
+					}else{
+						v = parse_string(bb);
+						if( v.equals(old) ) v = (String)old;
+					}
+					bChanged = ( v != old );
+					store.put_object(key,v);
+					break;
+				}
+				case 7:{
+					Object old = ( slot >= 0 ? prev.objs[slot] : null );
+					Object v = parse_string_set(bb);
+					if( v.equals(old) ) v = old;
+					bChanged = ( v != old );
+					store.put_object(key,v);
+					break;
+				}
+				case 8: // 差分レコードのみ
+					bChanged = ( slot >= 0 );
+					store.remove(key);
+					break;
+				}
+				if( bChanged && changed != null ) changed.add(key);
+			}
+			return matched;
+		}
+		
+		private static boolean prev_match(ValueStore prev,int slot,byte type,long prim){
+			return slot >= 0 && prev.types[slot] == type && prev.prims[slot] == prim;
+		}
+		
+		// bb の位置にある長さ付きの UTF-8 文字列が s と等しいか調べる。bb の位置は変更しない
+		// 不正なバイト列は false を返すので、呼び出し元でデコードして比べ直すこと
+		static boolean utf8_equals(ByteBuffer bb,String s){
+			int p = bb.position();
+			int length = bb.getInt(p);
+			p += 4;
+			int end = p + length;
+			int n = s.length();
+			if( length < n || length > n * 3 || end > bb.limit() ) return false;
+			int i = 0;
+			while( p < end ){
+				int b = bb.get(p++) & 0xff;
+				if( b < 0x80 ){
+					if( i >= n || s.charAt(i++) != b ) return false;
+				}else if( (b & 0xe0) == 0xc0 ){
+					if( p >= end ) return false;
+					int b2 = bb.get(p++);
+					if( (b2 & 0xc0) != 0x80 ) return false;
+					int c = ((b & 0x1f)<<6) | (b2 & 0x3f);
+					if( c < 0x80 || i >= n || s.charAt(i++) != c ) return false;
+				}else if( (b & 0xf0) == 0xe0 ){
+					if( p+1 >= end ) return false;
+					int b2 = bb.get(p++);
+					int b3 = bb.get(p++);
+					if( (b2 & 0xc0) != 0x80 || (b3 & 0xc0) != 0x80 ) return false;
+					int c = ((b & 0x0f)<<12) | ((b2 & 0x3f)<<6) | (b3 & 0x3f);
+					if( c < 0x800 || ( c >= 0xd800 && c <= 0xdfff ) ) return false;
+					if( i >= n || s.charAt(i++) != c ) return false;
+				}else if( (b & 0xf8) == 0xf0 ){
+					if( p+2 >= end ) return false;
+					int b2 = bb.get(p++);
+					int b3 = bb.get(p++);
+					int b4 = bb.get(p++);
+					if( (b2 & 0xc0) != 0x80 || (b3 & 0xc0) != 0x80 || (b4 & 0xc0) != 0x80 ) return false;
+					int cp = ((b & 0x07)<<18) | ((b2 & 0x3f)<<12) | ((b3 & 0x3f)<<6) | (b4 & 0x3f);
+					if( cp < 0x10000 || cp > 0x10ffff ) return false;
+					cp -= 0x10000;
+					if( i+1 >= n ) return false;
+					if( s.charAt(i++) != (char)(0xd800 + (cp>>10)) ) return false;
+					if( s.charAt(i++) != (char)(0xdc00 + (cp & 0x3ff)) ) return false;
+				}else{
+					return false;
+				}
+			}
+			return i == n;
+		}
+		
+		// encode map to bytes
+		public final byte[] encode_map(Map<String,?> map){
+			encode_map_buffer(map);
+			return local_output.get().bytes();
+		}
+		
+		// スレッドごとの出力バッファにエンコードして、その内容を返す。同じスレッドで次に encode するまで有効
+		public final ByteBuffer encode_map_buffer(Map<String,?> map){
+			Output o = local_output.get();
+			o.reset();
+			if( map instanceof ValueStore ){
+				o.encode_store((ValueStore)map);
+			}else{
+				for( Map.Entry<String,?> entry : map.entrySet() ){
+					o.encode_entry(entry.getKey(),entry.getValue());
+				}
+			}
+			o.encode_int( -1 ); // end marker
+			return o.buffer();
+		}
+		
+		// 変更内容を差分レコードにする。削除されたキーの値は removed_marker
+		public final byte[] encode_delta(boolean bClear,Map<String,?> changes){
+			Output o = local_output.get();
+			o.reset();
+			o.encode_int( bClear ? delta_clear : 0 );
+			for( Map.Entry<String,?> entry : changes.entrySet() ){
+				o.encode_entry(entry.getKey(),entry.getValue());
+			}
+			o.encode_int( -1 ); // end marker
+			return o.bytes();
+		}
+		
+		// インデックス付きの形式で encode する
+		// 先頭に magic,件数、続いてキーのハッシュ値の昇順に (ハッシュ値,エントリの位置) の表、最後にエントリ
+		public final byte[] encode_map_indexed(Map<String,?> map){
+			encode_map_indexed_buffer(map);
+			return local_output.get().bytes();
+		}
+		
+		// スレッドごとの出力バッファにインデックス付きの形式でエンコードして、その内容を返す。同じスレッドで次に encode するまで有効
+		public final ByteBuffer encode_map_indexed_buffer(Map<String,?> map){
+			ArrayList<String> keys = new ArrayList<String>(map.keySet());
+			Collections.sort(keys,hash_order);
+			int count = keys.size();
+			int entries_start = 8 + count * 8;
+			Output o = local_output.get();
+			o.reset();
+			o.ensure(entries_start);
+			// 表は後から埋める
+			o.out.putInt( indexed_magic );
+			o.out.putInt( count );
+			o.out.position( entries_start );
+			for(int i=0;i<count;++i){
+				String key = keys.get(i);
+				int offset = o.out.position();
+				o.encode_entry(key,map.get(key));
+				// encode_entry でバッファが拡張されている場合がある
+				o.out.putInt( 8 + i*8, hash_of(key) );
+				o.out.putInt( 12 + i*8, offset );
+			}
+			o.encode_int( -1 ); // end marker
+			return o.buffer();
+		}
+		
+		static int hash_of(String key){
+			return key == null ? 0 : key.hashCode();
+		}
+		
+		static final Comparator<String> hash_order = new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int ha = hash_of(a);
+				int hb = hash_of(b);
+				return ha < hb ? -1 : ha > hb ? 1 : 0;
+			}
+		};
+		
+		// エントリの位置のキーが一致すれば値をデコードする。一致しなければ not_found を返す
+		final Object decode_if_match(ByteBuffer bb,int offset,byte[] key_bytes,Object not_found){
+			bb.position(offset);
+			int t = bb.getInt();
+			int bytesize = bb.getInt();
+			if( bytesize != key_bytes.length ) return not_found;
+			for(int i=0;i<bytesize;++i){
+				if( bb.get() != key_bytes[i] ) return not_found;
+			}
+			switch(t){
+			default: return null;
+			case 1: return true;
+			case 2: return false;
+			case 3: return bb.getInt();
+			case 4: return bb.getLong();
+			case 5: return bb.getFloat();
+			case 6: return parse_string(bb);
+			case 7: return parse_string_set(bb);
+			}
+		}
+		
+		// スレッドごとの作業領域と出力バッファ
+		static final class Output{
+			final byte[] tmp = new byte[tmp_size];
+			// 再利用する出力バッファ。足りなくなったら倍々で拡張する
+			ByteBuffer out = ByteBuffer.allocate(out_initial_size);
+			
+			// 出力バッファを空にする。大きなデータを書いた後のバッファは保持しない
+			final void reset(){
+				if( out.capacity() > out_keep_size ) out = ByteBuffer.allocate(out_initial_size);
+				out.clear();
+			}
+			
+			// 出力バッファの残りが size バイト以上になるよう拡張する
+			final void ensure(int size){
+				if( out.remaining() >= size ) return;
+				int need = out.position() + size;
+				int capacity = out.capacity();
+				while( capacity < need ) capacity *= 2;
+				ByteBuffer b = ByteBuffer.allocate(capacity);
+				out.flip();
+				b.put(out);
+				out = b;
+			}
+			
+			// 出力バッファの内容を返す。次に encode するまで有効
+			final ByteBuffer buffer(){
+				ByteBuffer b = out.duplicate();
+				b.flip();
+				return b;
+			}
+			
+			// 出力バッファの内容をバイト配列にコピーする
+			final byte[] bytes(){
+				byte[] data = new byte[out.position()];
+				System.arraycopy(out.array(),out.arrayOffset(),data,0,data.length);
+				return data;
+			}
+			
+			// 文字列を長さとUTF-8のバイト列で書く
+			// String#getBytes を使わずに出力バッファに直接エンコードする。対になっていないサロゲートは getBytes と同じく '?' にする
+			final void endoce_string(String s){
+				int n = s.length();
+				// UTF-16 の１文字は UTF-8 で最大3バイト(サロゲートペアは2文字で4バイト)
+				ensure(4 + n * 3);
+				byte[] a = out.array();
+				int start = out.arrayOffset() + out.position() + 4;
+				int p = start;
+				for(int i=0;i<n;++i){
+					char c = s.charAt(i);
+					if( c < 0x80 ){
+						a[p++] = (byte)c;
+					}else if( c < 0x800 ){
+						a[p++] = (byte)(0xc0 | (c>>6));
+						a[p++] = (byte)(0x80 | (c & 0x3f));
+					}else if( c < 0xd800 || c > 0xdfff ){
+						a[p++] = (byte)(0xe0 | (c>>12));
+						a[p++] = (byte)(0x80 | ((c>>6) & 0x3f));
+						a[p++] = (byte)(0x80 | (c & 0x3f));
+					}else if( c <= 0xdbff && i+1 < n && s.charAt(i+1) >= 0xdc00 && s.charAt(i+1) <= 0xdfff ){
+						int cp = 0x10000 + ((c - 0xd800)<<10) + (s.charAt(++i) - 0xdc00);
+						a[p++] = (byte)(0xf0 | (cp>>18));
+						a[p++] = (byte)(0x80 | ((cp>>12) & 0x3f));
+						a[p++] = (byte)(0x80 | ((cp>>6) & 0x3f));
+						a[p++] = (byte)(0x80 | (cp & 0x3f));
+					}else{
+						a[p++] = (byte)'?';
+					}
+				}
+				out.putInt(p - start);
+				out.position(out.position() + (p - start));
+			}
+			final void endoce_string_set(Set<String> set){
+				int count = set.size();
+				encode_int(count);
+				for( String s : set ){
+					endoce_string(s);
+				}
+			}
+			final void encode_int(int value) {
+				ensure(4); out.putInt(value);
+			}
+
+			final void encode_long(long value) {
+				ensure(8); out.putLong(value);
+			}
+			
+			final void encode_float(float value) {
+				ensure(4); out.putFloat(value);
+			}
+			
+			// ValueStore の数値や真偽値はボックス化せずに書く
+			final void encode_store(ValueStore store){
+				for(int i=0,ie=store.keys.length;i<ie;++i){
+					String key = store.keys[i];
+					long v = store.prims[i];
+					switch(store.types[i]){
+					case ValueStore.T_EMPTY: break;
+					case ValueStore.T_BOOLEAN: encode_int( v != 0 ? 1 : 2 ); endoce_string(key); break;
+					case ValueStore.T_INT: encode_int( 3 ); endoce_string(key); encode_int( (int)v ); break;
+					case ValueStore.T_LONG: encode_int( 4 ); endoce_string(key); encode_long( v ); break;
+					case ValueStore.T_FLOAT: encode_int( 5 ); endoce_string(key); encode_int( (int)v ); break;
+					default: encode_entry(key,store.objs[i]); break;
+					}
+				}
+			}
+			
+			@SuppressWarnings("unchecked")
+			final void encode_entry(String key,Object value){
+				if( value == null ){
+					encode_int( 0 );
+					endoce_string(key);
+				}else if( value == removed_marker ){
+					encode_int( 8 );
+					endoce_string(key);
+				}else if( value instanceof Boolean ){
+					if( (Boolean)value ){
+						encode_int( 1 );
+						endoce_string(key);
+					}else{
+						encode_int( 2 );
+						endoce_string(key);
+					}
+				}else if( value instanceof Integer ){
+					encode_int( 3 );
+					endoce_string(key);
+					encode_int(  (Integer)value );
+				}else if( value instanceof Long ){
+					encode_int( 4 );
+					endoce_string(key);
+					encode_long( (Long)value );
+				}else if( value instanceof Float ){
+					encode_int( 5 );
+					endoce_string(key);
+					encode_float( (Float)value );
+				}else if( value instanceof String ){
+					encode_int( 6 );
+					endoce_string(key);
+					endoce_string( (String)value );
+				}else if( value instanceof Set<?> ){
+					encode_int( 7 );
+					endoce_string(key);
+					endoce_string_set( (Set<String>)value );
+				}else{
+					throw new RuntimeException("unsupported data type:"+value.getClass().getName());
+				}
+			}
+		}
+	}
+	
+	////////////////////////////////////////////////////////////
+	// 値を型ごとの配列に持つマップ
+	// キーはオープンアドレス法(線形探索)で配置し、int/long/float/boolean はボックス化せずに long の配列に格納する
+	// getInt() などはボックス化せずに値を返す。Map として取り出す時だけボックス化する
+	// スナップショットとして公開した後は変更しないこと
+	
+	public static final class ValueStore extends AbstractMap<String,Object>{
+		static final byte T_EMPTY = 0;
+		static final byte T_NULL = 1;
+		static final byte T_BOOLEAN = 2;
+		static final byte T_INT = 3;
+		static final byte T_LONG = 4;
+		static final byte T_FLOAT = 5;
+		static final byte T_OBJECT = 6; // String, Set<String>
+		
+		private String[] keys;
+		private byte[] types;
+		private long[] prims;
+		private Object[] objs;
+		private int size;
+		
+		public ValueStore(){
+			alloc(16);
+		}
+		
+		public ValueStore(Map<String,?> src){
+			if( src instanceof ValueStore ){
+				// 配列をそのまま写す
+				ValueStore v = (ValueStore)src;
+				keys = v.keys.clone();
+				types = v.types.clone();
+				prims = v.prims.clone();
+				objs = v.objs.clone();
+				size = v.size;
+			}else{
+				alloc(capacity_for(src.size()));
+				for( Map.Entry<String,?> entry : src.entrySet() ){
+					put(entry.getKey(),entry.getValue());
+				}
+			}
+		}
+		
+		private void alloc(int capacity){
+			keys = new String[capacity];
+			types = new byte[capacity];
+			prims = new long[capacity];
+			objs = new Object[capacity];
+			size = 0;
+		}
+		
+		// 使用率が 3/4 以下になる２のべき乗
+		private static int capacity_for(int n){
+			int capacity = 16;
+			while( capacity * 3 / 4 <= n ) capacity *= 2;
+			return capacity;
+		}
+		
+		private static int hash_of(Object key){
+			int h = key == null ? 0 : key.hashCode();
+			return h ^ (h>>>16);
+		}
+		
+		// キーの位置。なければ -1
+		private int find(Object key){
+			int mask = keys.length -1;
+			for( int i = hash_of(key) & mask ; ; i = (i+1) & mask ){
+				if( types[i] == T_EMPTY ) return -1;
+				String k = keys[i];
+				if( k == key || ( k != null && k.equals(key) ) ) return i;
+			}
+		}
+		
+		private void put_slot(String key,byte type,long prim,Object obj){
+			int mask = keys.length -1;
+			int i = hash_of(key) & mask;
+			for( ; ; i = (i+1) & mask ){
+				if( types[i] == T_EMPTY ) break;
+				String k = keys[i];
+				if( k == key || ( k != null && k.equals(key) ) ){
+					types[i] = type;
+					prims[i] = prim;
+					objs[i] = obj;
+					return;
+				}
+			}
+			keys[i] = key;
+			types[i] = type;
+			prims[i] = prim;
+			objs[i] = obj;
+			if( ++size > keys.length * 3 / 4 ) grow();
+		}
+		
+		private void grow(){
+			String[] old_keys = keys;
+			byte[] old_types = types;
+			long[] old_prims = prims;
+			Object[] old_objs = objs;
+			alloc(old_keys.length * 2);
+			for(int i=0,ie=old_keys.length;i<ie;++i){
+				if( old_types[i] != T_EMPTY ) put_slot(old_keys[i],old_types[i],old_prims[i],old_objs[i]);
+			}
+		}
+		
+		public void put_null(String key){ put_slot(key,T_NULL,0,null); }
+		public void put_boolean(String key,boolean value){ put_slot(key,T_BOOLEAN,value?1:0,null); }
+		public void put_int(String key,int value){ put_slot(key,T_INT,value,null); }
+		public void put_long(String key,long value){ put_slot(key,T_LONG,value,null); }
+		public void put_float(String key,float value){ put_slot(key,T_FLOAT,Float.floatToRawIntBits(value),null); }
+		public void put_object(String key,Object value){ put_slot(key,T_OBJECT,0,value); }
+		
+		// 型の合わない値は SharedPreferences と同様に ClassCastException になる
+		public boolean getBoolean(String key,boolean defValue){
+			int i = find(key);
+			if( i < 0 || types[i] == T_NULL ) return defValue;
+			if( types[i] != T_BOOLEAN ) throw new ClassCastException(type_error(i,"Boolean"));
+			return prims[i] != 0;
+		}
+		
+		public int getInt(String key,int defValue){
+			int i = find(key);
+			if( i < 0 || types[i] == T_NULL ) return defValue;
+			if( types[i] != T_INT ) throw new ClassCastException(type_error(i,"Integer"));
+			return (int)prims[i];
+		}
+		
+		public long getLong(String key,long defValue){
+			int i = find(key);
+			if( i < 0 || types[i] == T_NULL ) return defValue;
+			if( types[i] != T_LONG ) throw new ClassCastException(type_error(i,"Long"));
+			return prims[i];
+		}
+		
+		public float getFloat(String key,float defValue){
+			int i = find(key);
+			if( i < 0 || types[i] == T_NULL ) return defValue;
+			if( types[i] != T_FLOAT ) throw new ClassCastException(type_error(i,"Float"));
+			return Float.intBitsToFloat((int)prims[i]);
+		}
+		
+		private String type_error(int i,String expected){
+			Object v = value_at(i);
+			return v.getClass().getName()+" cannot be cast to java.lang."+expected;
+		}
+		
+		// スロットの値をボックス化して返す
+		private Object value_at(int i){
+			switch(types[i]){
+			default: return null;
+			case T_BOOLEAN: return prims[i] != 0;
+			case T_INT: return (int)prims[i];
+			case T_LONG: return prims[i];
+			case T_FLOAT: return Float.intBitsToFloat((int)prims[i]);
+			case T_OBJECT: return objs[i];
+			}
+		}
+		
+		@Override
+		public int size() {
+			return size;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) >= 0;
+		}
+		
+		@Override
+		public Object get(Object key) {
+			int i = find(key);
+			return i < 0 ? null : value_at(i);
+		}
+		
+		@Override
+		public Object put(String key,Object value) {
+			Object old = get(key);
+			if( value == null ){
+				put_null(key);
+			}else if( value instanceof Boolean ){
+				put_boolean(key,(Boolean)value);
+			}else if( value instanceof Integer ){
+				put_int(key,(Integer)value);
+			}else if( value instanceof Long ){
+				put_long(key,(Long)value);
+			}else if( value instanceof Float ){
+				put_float(key,(Float)value);
+			}else{
+				put_object(key,value);
+			}
+			return old;
+		}
+		
+		@Override
+		public Object remove(Object key) {
+			int i = find(key);
+			if( i < 0 ) return null;
+			Object old = value_at(i);
+			remove_slot(i);
+			return old;
+		}
+		
+		// 線形探索の列が途切れないよう、後ろのエントリを詰める
+		private void remove_slot(int hole){
+			int mask = keys.length -1;
+			for( int i = (hole+1) & mask ; types[i] != T_EMPTY ; i = (i+1) & mask ){
+				int home = hash_of(keys[i]) & mask;
+				// home が (hole,i] の範囲になければ hole に移せる
+				boolean bMovable = ( hole <= i ) ? ( home <= hole || home > i ) : ( home <= hole && home > i );
+				if( bMovable ){
+					keys[hole] = keys[i];
+					types[hole] = types[i];
+					prims[hole] = prims[i];
+					objs[hole] = objs[i];
+					hole = i;
+				}
+			}
+			keys[hole] = null;
+			types[hole] = T_EMPTY;
+			prims[hole] = 0;
+			objs[hole] = null;
+			--size;
+		}
+		
+		@Override
+		public void clear() {
+			alloc(16);
+		}
+		
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String,Object>>(){
+				@Override
+				public int size() {
+					return size;
+				}
+				
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new Iterator<Map.Entry<String,Object>>(){
+						int next = skip(0);
+						int last = -1;
+						
+						private int skip(int i){
+							while( i < keys.length && types[i] == T_EMPTY ) ++i;
+							return i;
+						}
+						
+						@Override
+						public boolean hasNext() {
+							return next < keys.length;
+						}
+						
+						@Override
+						public Map.Entry<String, Object> next() {
+							if( next >= keys.length ) throw new NoSuchElementException();
+							last = next;
+							next = skip(next+1);
+							return new Entry(keys[last],value_at(last));
+						}
+						
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+		
+		static final class Entry implements Map.Entry<String,Object>{
+			final String key;
+			final Object value;
+			
+			Entry(String key,Object value){
+				this.key = key;
+				this.value = value;
+			}
+			
+			@Override
+			public String getKey() {
+				return key;
+			}
+			
+			@Override
+			public Object getValue() {
+				return value;
+			}
+			
+			@Override
+			public Object setValue(Object value) {
+				throw new UnsupportedOperationException();
+			}
+			
+			@Override
+			public boolean equals(Object o) {
+				if( !(o instanceof Map.Entry) ) return false;
+				Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+				return ( key == null ? e.getKey() == null : key.equals(e.getKey()) )
+					&& ( value == null ? e.getValue() == null : value.equals(e.getValue()) );
+			}
+			
+			@Override
+			public int hashCode() {
+				return ( key == null ? 0 : key.hashCode() ) ^ ( value == null ? 0 : value.hashCode() );
+			}
+		}
+	}
+	
+	////////////////////////////////////////////////////////////
+	// デコードしたキーの文字列を再利用する辞書
+	// UTF-8 のバイト列で引くので、一致するキーがあれば String を作らない
+	// 使われなくなったキーが溜まり続けないよう、max_size を超えたら空にして作り直す
+	
+	public static final class KeyDictionary{
+		public static final int max_size = 4096;
+		
+		static final class Entry{
+			final int hash;
+			final byte[] bytes;
+			final String key;
+			final Entry next;
+			
+			Entry(int hash,byte[] bytes,String key,Entry next){
+				this.hash = hash;
+				this.bytes = bytes;
+				this.key = key;
+				this.next = next;
+			}
+		}
+		
+		private Entry[] table = new Entry[64];
+		private int size = 0;
+		
+		public synchronized int size(){
+			return size;
+		}
+		
+		// bb の position から length バイトのキーを返す。bb の位置は変更しない
+		public synchronized String get(ByteBuffer bb,int position,int length){
+			byte[] a = null;
+			int offset = 0;
+			if( bb.hasArray() ){
+				a = bb.array();
+				offset = bb.arrayOffset() + position;
+			}
+			int hash = 0;
+			for(int i=0;i<length;++i){
+				hash = hash * 31 + ( a != null ? a[offset+i] : bb.get(position+i) );
+			}
+			int index = hash & (table.length -1);
+			for( Entry e = table[index] ; e != null ; e = e.next ){
+				if( e.hash != hash || e.bytes.length != length ) continue;
+				int i = 0;
+				while( i < length && e.bytes[i] == ( a != null ? a[offset+i] : bb.get(position+i) ) ) ++i;
+				if( i == length ) return e.key;
+			}
+			// 辞書にないので登録する
+			byte[] bytes = new byte[length];
+			if( a != null ){
+				System.arraycopy(a,offset,bytes,0,length);
+			}else{
+				for(int i=0;i<length;++i) bytes[i] = bb.get(position+i);
+			}
+			String key;
+			try{
+				key = new String(bytes,0,length,Encoder.UTF8);
+			}catch(UnsupportedEncodingException ex){
+				throw new RuntimeException(ex);
+				// 発生しない
+			}
+			if( size >= max_size ){
+				table = new Entry[64];
+				size = 0;
+			}else if( size >= table.length * 3 / 4 ){
+				rehash();
+			}
+			index = hash & (table.length -1);
+			table[index] = new Entry(hash,bytes,key,table[index]);
+			++size;
+			return key;
+		}
+		
+		private void rehash(){
+			Entry[] new_table = new Entry[table.length * 2];
+			for( Entry e : table ){
+				for( ; e != null ; e = e.next ){
+					int index = e.hash & (new_table.length -1);
+					new_table[index] = new Entry(e.hash,e.bytes,e.key,new_table[index]);
+				}
+			}
+			table = new_table;
+		}
+		
+		public synchronized void clear(){
+			table = new Entry[64];
+			size = 0;
+		}
+	}
+	
+	////////////////////////////////////////////////////////////
+	// インデックス付き形式のデータを必要な分だけデコードする読み取り専用のマップ
+	// get/containsKey はインデックスを二分探索して、そのエントリだけをデコードする
+	// 全体を列挙する操作(entrySet,getAll)では一度だけ全体をデコードする
+	
+	public static final class IndexedMap extends AbstractMap<String,Object>{
+		private static final Object not_found = new Object();
+		private static final Object null_value = new Object(); // ConcurrentHashMap は null を格納できない
+		
+		private final ByteBuffer bb;
+		private final int count;
+		private final KeyDictionary dict;
+		// デコード済みの値。読み込みはロックなしで行う
+		private final ConcurrentHashMap<String,Object> cache = new ConcurrentHashMap<String,Object>();
+		private volatile HashMap<String,Object> all;
+		
+		IndexedMap(ByteBuffer bb,KeyDictionary dict){
+			this.bb = bb;
+			this.dict = dict;
+			this.count = bb.getInt(4);
+		}
+		
+		@Override
+		public int size() {
+			return count;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return lookup(key) != not_found;
+		}
+		
+		@Override
+		public Object get(Object key) {
+			Object value = lookup(key);
+			return value == not_found ? null : value;
+		}
+		
+		private Object lookup(Object o){
+			HashMap<String,Object> all = this.all;
+			if( all != null ) return all.containsKey(o) ? all.get(o) : not_found;
+			if( !(o instanceof String) ) return not_found;
+			String key = (String)o;
+			Object value = cache.get(key);
+			if( value == null ){
+				value = decode(key);
+				cache.put(key,value == null ? null_value : value);
+			}else if( value == null_value ){
+				value = null;
+			}
+			return value;
+		}
+		
+		// インデックスを探してデコードする
+		// 複数のスレッドが同じキーを同時にデコードすることがあるが、結果は同じなので問題ない
+		private Object decode(String key){
+			Object value = not_found;
+			ByteBuffer bb = this.bb.duplicate();
+			try{
+				byte[] key_bytes = key.getBytes(Encoder.UTF8);
+				int hash = Encoder.hash_of(key);
+				// ハッシュ値が一致する最初の位置を探す
+				int lo = 0;
+				int hi = count;
+				while( lo < hi ){
+					int mid = (lo + hi) >>> 1;
+					if( bb.getInt(8 + mid * 8) < hash ){
+						lo = mid +1;
+					}else{
+						hi = mid;
+					}
+				}
+				for( int i=lo ; i < count && bb.getInt(8 + i * 8) == hash ; ++i ){
+					value = encoder.decode_if_match(bb,bb.getInt(12 + i * 8),key_bytes,not_found);
+					if( value != not_found ) break;
+				}
+			}catch(UnsupportedEncodingException ex){
+				throw new RuntimeException(ex);
+				// 発生しない
+			}
+			return value;
+		}
+		
+		@Override
+		public synchronized Set<Map.Entry<String, Object>> entrySet() {
+			if( all == null ){
+				HashMap<String,Object> map = new HashMap<String,Object>();
+				ByteBuffer b = bb.duplicate();
+				b.position(8 + count * 8);
+				encoder.parse_entries(b,map,dict);
+				all = map;
+			}
+			return Collections.unmodifiableMap(all).entrySet();
+		}
+	}
+
+
+}
+
+
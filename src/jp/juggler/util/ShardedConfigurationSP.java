@@ -0,0 +1,293 @@
+/*
+	キーのハッシュで複数のファイルに分けて保持する設定管理クラスです。
+	- インタフェースは SharedPreferences とおおむね互換があります。
+	- 各シャードは ConfigurationFileSP で、ファイルのロックとバージョン番号はシャードごとに別々です。
+	  あるキーを頻繁に書き込むプロセスがあっても、別のシャードのキーの読み書きは待たされません。
+	- Editor はシャードごとに commit/apply します。複数のシャードにまたがる変更は、まとめて１回には書き込まれません。
+	- getAll() は全てのシャードを読んだ後にバージョンを確認し直して、途中で変更されていたら読み直します。
+
+	ただし制限がいくつかあります。
+	- シャードの数はファイル名に含まれます。同じパスを使う全てのプロセスで同じシャード数を指定してください。
+	- 変更の通知はシャードごとに行われます。Editor#clear() の通知もシャードごとです。
+*/
+
+package jp.juggler.util;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import jp.juggler.util.ConfigurationFileSP.Snapshot;
+
+import android.content.SharedPreferences;
+
+public class ShardedConfigurationSP implements SharedPreferences{
+	static final String TAG="ShardedConfigurationSP";
+
+	// getAll() で全てのシャードを読み直す回数の上限
+	static final int getall_retry = 3;
+
+	final ConfigurationFileSP[] shards;
+
+	// シャードごとの ConfigurationFileSP のインスタンスは参照カウントで共用される。使い終わったら release() を呼ぶこと
+	// シャードのファイル名は path.(シャード番号)-(シャード数) になる
+	public static ShardedConfigurationSP getInstance(String path,int n_shard,boolean other_read) throws IOException{
+		if( n_shard <= 0 ) throw new IllegalArgumentException("bad shard count: "+n_shard);
+		ConfigurationFileSP[] shards = new ConfigurationFileSP[n_shard];
+		try{
+			for(int i=0;i<n_shard;++i){
+				shards[i] = ConfigurationFileSP.getInstance(path+"."+i+"-"+n_shard,other_read);
+			}
+		}catch(IOException ex){
+			for( ConfigurationFileSP shard : shards ){
+				if( shard != null ) shard.release();
+			}
+			throw ex;
+		}
+		return new ShardedConfigurationSP(shards);
+	}
+
+	private ShardedConfigurationSP(ConfigurationFileSP[] shards){
+		this.shards = shards;
+	}
+
+	// 全てのシャードの参照カウントを減らす。release() した後のインスタンスは使わないこと
+	public void release(){
+		synchronized(listeners){
+			for( ShardListener adapter : listeners.values() ){
+				for( ConfigurationFileSP shard : shards ){
+					shard.unregisterOnSharedPreferenceChangeListener(adapter);
+				}
+			}
+			listeners.clear();
+		}
+		for( ConfigurationFileSP shard : shards ){
+			shard.release();
+		}
+	}
+
+	public int getShardCount(){
+		return shards.length;
+	}
+
+	// キーを保持するシャード。String#hashCode はどのプロセスでも同じ値になる
+	public ConfigurationFileSP getShard(String key){
+		return shards[ ( key.hashCode() & 0x7fffffff ) % shards.length ];
+	}
+
+	// ファイルを削除して作成し直す
+	public void create() throws IOException{
+		for( ConfigurationFileSP shard : shards ){
+			shard.create();
+		}
+	}
+
+	//////////////////////////////////////////////////////////
+	// 読み込み
+
+	// 全てのシャードを読んでから各シャードのバージョンを確認し直す。変わっていなければ、全てのシャードが同時に取りうる状態になっている
+	// 他のプロセスが書き込み続けていて getall_retry 回とも変わっていた場合は、最後に読んだ状態を返す
+	@Override
+	public Map<String, ?> getAll() {
+		Snapshot[] list = new Snapshot[shards.length];
+		for(int i=0;i<shards.length;++i){
+			list[i] = shards[i].getSnapshot();
+		}
+		for(int nTry=0;nTry<getall_retry;++nTry){
+			boolean bChanged = false;
+			for(int i=0;i<shards.length;++i){
+				Snapshot s = shards[i].getSnapshot();
+				if( s.getVersion() != list[i].getVersion() ){
+					list[i] = s;
+					bChanged = true;
+				}
+			}
+			if( !bChanged ) break;
+		}
+		HashMap<String,Object> result = new HashMap<String,Object>();
+		for( Snapshot s : list ){
+			result.putAll(s.getAll());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return getShard(key).contains(key);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return getShard(key).getBoolean(key,defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return getShard(key).getFloat(key,defValue);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return getShard(key).getInt(key,defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return getShard(key).getLong(key,defValue);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return getShard(key).getString(key,defValue);
+	}
+
+	@Override
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return getShard(key).getStringSet(key,defValues);
+	}
+
+	//////////////////////////////////////////////////////////
+	// 変更の通知
+	// シャードからの通知の SharedPreferences をこのインスタンスに差し替える
+
+	private final WeakHashMap<OnSharedPreferenceChangeListener,ShardListener> listeners = new WeakHashMap<OnSharedPreferenceChangeListener,ShardListener>();
+
+	// リスナ本体は弱参照で持つ。SharedPreferences と同様に、登録したリスナは呼び出し側で保持すること
+	final class ShardListener implements OnSharedPreferenceChangeListener{
+		final WeakReference<OnSharedPreferenceChangeListener> ref;
+
+		ShardListener(OnSharedPreferenceChangeListener listener){
+			this.ref = new WeakReference<OnSharedPreferenceChangeListener>(listener);
+		}
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sp,String key) {
+			OnSharedPreferenceChangeListener listener = ref.get();
+			if( listener != null ) listener.onSharedPreferenceChanged(ShardedConfigurationSP.this,key);
+		}
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
+		synchronized(listeners){
+			if( listeners.containsKey(listener) ) return;
+			ShardListener adapter = new ShardListener(listener);
+			listeners.put(listener,adapter);
+			for( ConfigurationFileSP shard : shards ){
+				shard.registerOnSharedPreferenceChangeListener(adapter);
+			}
+		}
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener( OnSharedPreferenceChangeListener listener){
+		synchronized(listeners){
+			ShardListener adapter = listeners.remove(listener);
+			if( adapter == null ) return;
+			for( ConfigurationFileSP shard : shards ){
+				shard.unregisterOnSharedPreferenceChangeListener(adapter);
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////////
+	// 書き込み
+
+	@Override
+	public Editor edit() {
+		return new ShardedEditor();
+	}
+
+	// 変更のあったシャードの Editor だけを作る
+	final class ShardedEditor implements Editor{
+		final Editor[] editors = new Editor[shards.length];
+
+		private Editor editor(String key){
+			int i = ( key.hashCode() & 0x7fffffff ) % shards.length;
+			Editor e = editors[i];
+			if( e == null ) editors[i] = e = shards[i].edit();
+			return e;
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			editor(key).putString(key,value);
+			return this;
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			editor(key).putStringSet(key,values);
+			return this;
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			editor(key).putInt(key,value);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			editor(key).putLong(key,value);
+			return this;
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			editor(key).putFloat(key,value);
+			return this;
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			editor(key).putBoolean(key,value);
+			return this;
+		}
+
+		@Override
+		public Editor remove(String key) {
+			editor(key).remove(key);
+			return this;
+		}
+
+		// 全てのシャードを消去する
+		@Override
+		public Editor clear() {
+			for(int i=0;i<shards.length;++i){
+				if( editors[i] == null ) editors[i] = shards[i].edit();
+				editors[i].clear();
+			}
+			return this;
+		}
+
+		// シャードごとに順に書き込む。どれかが失敗したら false を返すが、他のシャードへの書き込みは取り消さない
+		@Override
+		public boolean commit() {
+			boolean bOk = true;
+			for( Editor e : active_editors() ){
+				if( !e.commit() ) bOk = false;
+			}
+			return bOk;
+		}
+
+		@Override
+		public void apply() {
+			for( Editor e : active_editors() ){
+				e.apply();
+			}
+		}
+
+		private ArrayList<Editor> active_editors(){
+			ArrayList<Editor> list = new ArrayList<Editor>();
+			for( Editor e : editors ){
+				if( e != null ) list.add(e);
+			}
+			return list;
+		}
+	}
+}
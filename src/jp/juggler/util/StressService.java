@@ -0,0 +1,84 @@
+package jp.juggler.util;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+/*
+	StressTest を別プロセスで実行するサービスです。ActStress から開始します。
+	- P1,P2,P3 はそれぞれ別のプロセスで動作します(AndroidManifest.xml の android:process)。
+*/
+public class StressService extends Service{
+    static final String TAG="StressService";
+
+    public static final String EXTRA_PATH = "path";
+    public static final String EXTRA_THREADS = "threads";
+    public static final String EXTRA_DURATION = "duration";
+
+    // プロセスごとにサービスのクラスを分ける
+    public static final class P1 extends StressService{}
+    public static final class P2 extends StressService{}
+    public static final class P3 extends StressService{}
+    public static final Class<?>[] process_list = new Class<?>[]{ P1.class, P2.class, P3.class };
+
+    Worker worker;
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		if( worker != null ){
+			while( worker.isAlive() ){
+				worker.test.cancel();
+				try{ worker.join(333); }catch(InterruptedException ex){}
+			}
+		}
+	}
+
+	// 1.x だとこちらが呼ばれる
+	@Override public void onStart(Intent intent, int startId) {
+	    handleCommand(intent);
+	}
+	// 2.x 以降はこちらが呼ばれる
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+	    handleCommand(intent);
+	    return START_NOT_STICKY;
+	}
+
+	void handleCommand(Intent intent){
+		if( intent == null ) return;
+		if( worker != null && worker.isAlive() ) return;
+		worker = new Worker(new StressTest(
+			getClass().getSimpleName()
+			,intent.getStringExtra(EXTRA_PATH)
+			,intent.getIntExtra(EXTRA_THREADS,4)
+			,intent.getLongExtra(EXTRA_DURATION,10000)
+		));
+		worker.start();
+	}
+
+	class Worker extends Thread{
+		final StressTest test;
+
+		Worker(StressTest test){
+			this.test = test;
+		}
+
+		public void run(){
+			Log.d(TAG,test.name+": start. threads="+test.n_thread);
+			try{
+				Log.d(TAG,test.name+": "+test.run());
+			}catch(Throwable ex){
+				ex.printStackTrace();
+			}
+			Log.d(TAG,test.name+": end.");
+			stopSelf();
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package jp.juggler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jp.juggler.util.ConfigurationFileSP.Encoder;
+import jp.juggler.util.TransactionalFileAccess.SimpleMetrics;
+import jp.juggler.util.TransactionalFileAccess.TransactionProc;
+
+/*
+	複数プロセスから同じファイルに読み書きする負荷テストです。
+	- 各プロセスは指定された数のスレッドから、全速力で read-modify-write のトランザクションを行います。
+	- データは ConfigurationFileSP と同じ形式のマップで、全体のカウンタとプロセスごとのカウンタを同時に増やします。
+	  終了時にプロセスごとの結果を同じファイルに書き込みます。全体のカウンタとプロセスごとのカウンタの合計が合わなければ更新が失われています。
+	- Android では StressService が別プロセスで実行します。Linux の JVM では main() が指定された数の JVM を起動します。
+	  JVM では jvm/ にある android.util.Log などの代用品と一緒にコンパイルしてください(README を参照)。
+
+	java jp.juggler.util.StressTest (ファイルのパス) (プロセス数) (スレッド数) (ミリ秒)
+*/
+public class StressTest{
+	static final String TAG="StressTest";
+
+	public static final String KEY_TOTAL = "total";
+	public static final String KEY_COUNT_PREFIX = "count.";
+	public static final String KEY_RESULT_PREFIX = "result.";
+
+	final String name;
+	final String path;
+	final int n_thread;
+	final long duration;
+	final AtomicBoolean bCancelled = new AtomicBoolean(false);
+
+	public StressTest(String name,String path,int n_thread,long duration){
+		this.name = name;
+		this.path = path;
+		this.n_thread = n_thread;
+		this.duration = duration;
+	}
+
+	public void cancel(){
+		bCancelled.set(true);
+	}
+
+	// トランザクションを繰り返して、このプロセスの結果をファイルに書き込む。結果の文字列を返す
+	// ロックの待ち時間と他のプロセスの更新を読み直した回数は TransactionalFileAccess の計測値を使う
+	// 自分の書き込みの後の読み直しは数えない(metric_reload_other)
+	public String run() throws IOException, InterruptedException{
+		TransactionalFileAccess datafile = new TransactionalFileAccess(path,0600,true);
+		try{
+			SimpleMetrics metrics = new SimpleMetrics();
+			datafile.setMetrics(metrics);
+
+			final long end = System.currentTimeMillis() + duration;
+			Client[] clients = new Client[n_thread];
+			for(int i=0;i<n_thread;++i){
+				clients[i] = new Client(datafile,end);
+			}
+			long start = System.currentTimeMillis();
+			for( Client c : clients ) c.start();
+			for( Client c : clients ) c.join();
+			long elapsed = System.currentTimeMillis() - start;
+			datafile.setMetrics(null);
+
+			// 集計
+			int commits = 0;
+			int errors = 0;
+			for( Client c : clients ){
+				commits += c.commit_count;
+				errors += c.error_count;
+			}
+			String file_path = datafile.getDataFile().getPath();
+			SimpleMetrics.Stat lock_wait = metrics.get(file_path,TransactionalFileAccess.metric_lock_wait);
+			SimpleMetrics.Stat reload = metrics.get(file_path,TransactionalFileAccess.metric_reload_other);
+			final String result = String.format(
+				"commits=%d (%.1f/s) errors=%d lock_wait p50<=%.2fms p99<=%.2fms max=%.2fms reloads_by_others=%d"
+				,commits
+				,commits * 1000.0 / elapsed
+				,errors
+				,lock_wait == null ? 0 : lock_wait.percentile(0.50) / 1000000.0
+				,lock_wait == null ? 0 : lock_wait.percentile(0.99) / 1000000.0
+				,lock_wait == null ? 0 : lock_wait.max / 1000000.0
+				,reload == null ? 0 : reload.count
+			);
+
+			datafile.transaction(new TransactionProc() {
+				@Override
+				public byte[] update(byte[] old) {
+					Encoder encoder = new Encoder();
+					HashMap<String,Object> map = parse_map(encoder,old);
+					map.put(KEY_RESULT_PREFIX+name,result);
+					return encoder.encode_map(map);
+				}
+			});
+			return result;
+		}finally{
+			datafile.close();
+		}
+	}
+
+	// トランザクションを繰り返すスレッド
+	class Client extends Thread{
+		final TransactionalFileAccess datafile;
+		final long end;
+		final Encoder encoder = new Encoder();
+		final String key_count = KEY_COUNT_PREFIX + name;
+		int commit_count = 0;
+		int error_count = 0;
+
+		Client(TransactionalFileAccess datafile,long end){
+			this.datafile = datafile;
+			this.end = end;
+		}
+
+		public void run(){
+			while( !bCancelled.get() && System.currentTimeMillis() < end ){
+				try{
+					datafile.transaction(new TransactionProc() {
+						@Override
+						public byte[] update(byte[] old) {
+							HashMap<String,Object> map = parse_map(encoder,old);
+							map.put(KEY_TOTAL,get_long(map,KEY_TOTAL) + 1);
+							map.put(key_count,get_long(map,key_count) + 1);
+							return encoder.encode_map(map);
+						}
+					});
+					++commit_count;
+				}catch(Throwable ex){
+					ex.printStackTrace();
+					++error_count;
+				}
+			}
+		}
+	}
+
+	// 結果の数。全プロセスの結果が揃ったか確認する
+	public static int count_result(Map<String,Object> map){
+		int n = 0;
+		for( String key : map.keySet() ){
+			if( key.startsWith(KEY_RESULT_PREFIX) ) ++n;
+		}
+		return n;
+	}
+
+	// プロセスごとの結果と、全体のカウンタとプロセスごとのカウンタの合計を比べた結果を返す
+	public static ArrayList<String> summarize(Map<String,Object> map,long duration){
+		ArrayList<String> lines = new ArrayList<String>();
+		long sum = 0;
+		for( Map.Entry<String,Object> entry : map.entrySet() ){
+			String key = entry.getKey();
+			if( key.startsWith(KEY_COUNT_PREFIX) ){
+				sum += (Long)entry.getValue();
+			}else if( key.startsWith(KEY_RESULT_PREFIX) ){
+				lines.add(key.substring(KEY_RESULT_PREFIX.length())+": "+entry.getValue());
+			}
+		}
+		long total_commits = get_long(map,KEY_TOTAL);
+		lines.add(String.format("total=%d sum=%d %.1f commits/s",total_commits,sum,total_commits * 1000.0 / duration));
+		lines.add( total_commits == sum ? "OK. no lost updates." : "NG. "+(sum - total_commits)+" updates lost." );
+		return lines;
+	}
+
+	// ファイルがない場合は data が null になる
+	static HashMap<String,Object> parse_map(Encoder encoder,byte[] data){
+		if( data == null ) return new HashMap<String,Object>();
+		return encoder.parse_map(data);
+	}
+
+	static long get_long(Map<String,Object> map,String key){
+		Long v = (Long)map.get(key);
+		return v != null ? v : 0;
+	}
+
+	/////////////////////////////////////////////////////////////
+	// Linux の JVM から実行する
+
+	public static void main(String[] args) throws Exception{
+		if( args.length == 5 && args[0].equals("-worker") ){
+			// 起動された側のプロセス。結果はファイルに書き込み、起動した側がまとめて表示する
+			new StressTest(args[1],args[2],Integer.parseInt(args[3]),Long.parseLong(args[4])).run();
+			return;
+		}
+		if( args.length != 4 ){
+			System.err.println("usage: java jp.juggler.util.StressTest path processes threads duration_ms");
+			System.exit(1);
+		}
+		String path = args[0];
+		int n_process = Integer.parseInt(args[1]);
+		String n_thread = args[2];
+		long duration = Long.parseLong(args[3]);
+
+		TransactionalFileAccess datafile = new TransactionalFileAccess(path,0600,true);
+		try{
+			datafile.create();
+			System.out.println(String.format("start: %d processes x %s threads, %dms",n_process,n_thread,duration));
+			String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+			Process[] list = new Process[n_process];
+			for(int i=0;i<n_process;++i){
+				ProcessBuilder pb = new ProcessBuilder(
+					java,"-cp",System.getProperty("java.class.path")
+					,StressTest.class.getName(),"-worker","P"+(i+1),path,n_thread,Long.toString(duration)
+				);
+				pb.redirectErrorStream(true);
+				list[i] = pb.start();
+				new StreamCopy(list[i]).start();
+			}
+			int n_failed = 0;
+			for( Process p : list ){
+				if( p.waitFor() != 0 ) ++n_failed;
+			}
+			if( n_failed > 0 ) System.out.println(n_failed+" worker processes failed.");
+
+			HashMap<String,Object> map = parse_map(new Encoder(),datafile.load());
+			if( count_result(map) < n_process ) System.out.println("results="+count_result(map));
+			for( String line : summarize(map,duration) ){
+				System.out.println(line);
+			}
+		}finally{
+			datafile.close();
+		}
+	}
+
+	// 起動したプロセスの出力(エラーなど)をこのプロセスの標準出力に写す
+	static class StreamCopy extends Thread{
+		final Process process;
+
+		StreamCopy(Process process){
+			this.process = process;
+			setDaemon(true);
+		}
+
+		public void run(){
+			byte[] buf = new byte[4096];
+			try{
+				for(;;){
+					int delta = process.getInputStream().read(buf);
+					if( delta <= 0 ) break;
+					System.out.write(buf,0,delta);
+					System.out.flush();
+				}
+			}catch(IOException ex){
+				ex.printStackTrace();
+			}
+		}
+	}
+}
@@ -1,507 +1,2262 @@
-/*
-	複数のプロセスからデータファイルの読み書きを行うためのクラスです。
-	
-	データの読み込みには byte[] load_if_update() を使います。
-	まだデータを読んだことがないか、最後に読んだあとに変更されていればデータを読み込みます。
-	
-	データの書き出しには  transaction(TransactionProc) を呼び出します。
-	古いデータを加工して新しいデータを返すようなコードを TransactionProc#update に 実装してください。
-	
-	特徴
-	- 読み書きの際に flock (javaのFileLock) を取得して排他を行います。
-	- ヘッダ部分をmmap(javaの MappedByteBuffer)でメモリにマッピングして、更新チェックの負荷を下げています。
-	- データのSHA-1ダイジェストをヘッダに格納して、ロード時にチェックを行います。
-	- 保存時にバックアップファイルを作成するのでデータ破損に強い？かもしれません。破損の仕方にもよりますが。
-
-	注意点
-	- このクラスは実際にはデータファイルとバックアップファイルの２つのファイルを作成/更新します
-	- MappedByteBuffer は明示的に unmapを行うことができません。gcまかせです。
-	- MappedByteBuffer.force() の結果が別プロセス上のマッピングにすぐに伝達されるかどうかは未定義です。
-	- ファイル全体がメモリに収まるような用途しか想定してません。
-*/
-
-package jp.juggler.util;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-import android.util.Log;
-
-public class TransactionalFileAccess {
-	static final String TAG="TransactionalFileAccess";
-	public static boolean debug = false;
-
-	// ダイジェスト計算に使うアルゴリズム
-	public static final String digest_type = "SHA-1";
-
-	// 仮想メモリのページサイズ。実際には FileChannel#map が適当に調整してくれるはず…
-	public static final int pagesize = 4096;
-
-	// トランザクションのデータ計算インタフェース
-	public interface TransactionProc{
-		byte[] update(byte[] old);
-	}
-	
-	////////////////////////////////////////
-	// 変数
-	
-	// ファイルのパーミッション
-	public final int permission;
-
-	// データファイル
-	public final File        datafile;
-	private RandomAccessFile datafile_handle;
-	private FileChannel      datafile_channel;
-	private FileLock         datafile_lock;
-	private MappedByteBuffer datafile_map;
-
-	// バックアップファイル
-	public final File        backupfile;
-	private RandomAccessFile backupfile_handle;
-	private FileChannel      backupfile_channel;
-
-	// save_sub や validate_file で使うバッファ
-	ByteBuffer bb_tmp = ByteBuffer.allocate(pagesize);
-	
-	// 最後にロードしたデータ
-	private int last_version = -1;
-	private int last_hash_length = -1;
-	private byte[] last_hash = new byte[pagesize];
-	private byte[] last_data;
-
-	/////////////////////////////////////////////////////
-
-	public TransactionalFileAccess(String path,int permission,boolean bOpen) throws IOException{
-		this.datafile = new File(path);
-		this.backupfile = new File(path+".bak" );
-		this.permission = permission;
-		if(bOpen) open();
-	}
-
-	/*package access*/  File getDataFile(){ return datafile;}
-	/*package access*/  File getBackupFile(){ return backupfile;}
-	/*package access*/  int getPermission(){ return permission;}
-	
-	// 開く
-	public synchronized void open() throws IOException{
-		if( datafile_handle != null ) throw new IllegalStateException("already open.");
-
-		try{
-			//
-			datafile_handle = new RandomAccessFile(datafile, "rw");
-			set_permission(datafile.getPath(),permission);
-			datafile_channel = datafile_handle.getChannel();
-			//
-			backupfile_handle = new RandomAccessFile(backupfile, "rw");
-			set_permission(backupfile.getPath(),permission);
-			backupfile_channel = backupfile_handle.getChannel();
-			//
-			lock();
-			try{
-				meta_buffer_map();
-			}finally{
-				unlock();
-			}
-		}catch(IOException ex){
-			close();
-			throw ex;
-		}
-	}
-	
-	// 閉じる
-	public synchronized void close(){
-		unlock();
-		meta_buffer_unmap();
-
-		if( datafile_channel != null ){
-			try{ datafile_channel.close(); }catch(Throwable ex){}
-			datafile_channel = null;
-		}
-		if( datafile_handle != null ){
-			try{ datafile_handle.close(); } catch(Throwable ex){}
-			datafile_handle = null; 
-		}
-		if( backupfile_channel != null ){
-			try{ backupfile_channel.close(); }catch(Throwable ex){}
-			backupfile_channel = null;
-		}
-		if( backupfile_handle != null ){
-			try{ backupfile_handle.close(); } catch(Throwable ex){}
-			backupfile_handle = null; 
-		}
-	}
-	
-	// 閉じて、データとメタデータを削除して、開き直す
-	public synchronized void create() throws IOException {
-		close();
-		datafile.delete();
-		backupfile.delete();
-		
-		open();
-	}
-
-
-	// データの強制ロード
-	public synchronized byte[] load() throws IOException{
-		lock();
-		try{
-			return load_sub();
-		}finally{
-			unlock();
-		}
-	}
-
-	// データが更新されていればロード,でなければnullを返す
-	public synchronized byte[] load_if_update() throws IOException{
-		// ロック前にversionだけ見て大雑把に確認する
-		int version = datafile_map.getInt(4);
-		if( version == last_version ) return null;
-		// ロックして確認しなおしてロード
-		lock();
-		try{
-			return isMetaChanged() ? load_sub() : null;
-		}finally{
-			unlock();
-		}
-	}
-	
-	// 最後に読んだデータを取得
-	public synchronized byte[] getLastLoad(){
-		return last_data;
-	}
-
-	// transaction update 
-	public synchronized void transaction(TransactionProc proc) throws IOException {
-		lock();
-		try{
-			byte[] old_data = last_data;
-			try{
-				if( isMetaChanged() ) old_data = load_sub();
-			}catch(FileNotFoundException ex){
-				old_data = null; // ファイルがない場合
-			}
-			// update
-			byte[] new_data = proc.update(old_data);
-			save_sub(new_data);
-		}finally{
-			unlock();
-		}
-	}
-	
-	/////////////////////////////////////////////////////////////
-
-	// データファイルが正常か確認する
-	private final boolean validate_file( FileChannel fc ,String name){
-		try{
-			if( fc.size() < pagesize ){
-				Log.e(TAG,String.format("%s: too small size: %s",name,fc.size()));
-				return false;
-			}
-			// ヘッダ部分を読む
-			ByteBuffer b = bb_tmp;
-			b.clear();
-			while( b.remaining() > 0 ) fc.read(b);
-			// ヘッダの内容をパース
-			b.position(0);
-			int data_length = b.getInt();
-			@SuppressWarnings("unused")
-			int version = b.getInt(); 
-			int digest_len = b.getInt();
-			byte[] digest = new byte[digest_len]; b.get( digest );
-			// データを読む
-			byte[] data = new byte[data_length];
-			b = ByteBuffer.wrap(data);
-			fc.position(pagesize);
-			while( b.remaining() > 0 ){
-				int delta =fc.read(b);
-				if(delta <= 0 ){
-					Log.e(TAG,String.format("%s: data size not match. read=%s remain=%s",name,b.position(),b.remaining() ));
-					return false;
-				}
-			}
-			if( data_length > 0 ){
-				// ダイジェストを比較する
-				byte[] digest_real = check_digest(data);
-				if( digest_real.length != digest_len ){
-					Log.e(TAG,String.format("%s: digest size not match. header=%s data=%s",name,digest_len,digest_real.length  ));
-					return false;
-				}
-				for(int i=0;i<digest_len;++i){
-					if( digest[i] != digest_real[i] ){
-						Log.e(TAG,String.format("%s: digest data not match.",name  ));
-						return false;
-					}
-				}
-			}
-			// OK.
-			return true;
-		}catch(Throwable ex){
-			ex.printStackTrace();
-			return false;
-		}
-	}
-	
-	// データファイルとバックアップファイルを確認して、必要ならリストアやデータの初期化を行う
-	private void restore_data() throws IOException{
-		//
-		if( validate_file( datafile_channel ,datafile.getName()) ) return;
-		
-		if( validate_file( backupfile_channel,backupfile.getName() ) ){
-			Log.w(TAG,"restore from back-up file..");
-			int length = (int)backupfile_channel.size();
-			backupfile_channel.position(0);
-			datafile_channel.position(0);
-			int nCopy = 0;
-			ByteBuffer b = ByteBuffer.allocate(16384);
-			while( nCopy < length ){
-				b.clear();
-				int nRead =  backupfile_channel.read(b);
-				if( nRead <= 0 ) throw new RuntimeException("backup data broken: unexpected EOF");
-				int nWrite = 0;
-				b.flip();
-				while( nWrite < nRead ){
-					int delta = datafile_channel.write(b);
-					if( delta <= 0 ) throw new RuntimeException("write failed.");
-					nWrite += delta;
-				}
-				nCopy += nWrite;
-			}
-			datafile_channel.truncate(length);
-			datafile_channel.force(true);
-			Log.w(TAG,String.format("restore data complete. copy %s bytes.",length));
-			return;
-		}
-		
-		Log.w(TAG,String.format("initialize data file."));
-		datafile_channel.truncate(pagesize);
-		datafile_channel.position(0);
-		// 初期データはゼロフィル
-		ByteBuffer buffer = ByteBuffer.wrap(new byte[pagesize]);
-		buffer.position(0);
-		while( buffer.remaining() > 0 ){
-			datafile_channel.write(buffer);
-		}
-		datafile_channel.force(true);
-		Log.w(TAG,String.format("initialize data file complete."));
-	}
-	//////////////////////////////////////////////////
-	// mmap 
-	
-	private void meta_buffer_map() throws IOException{
-		if( datafile_map == null ){
-			restore_data();
-			//
-			last_version = 0;
-			last_hash_length = -1;
-			//
-			datafile_map = datafile_channel.map(FileChannel.MapMode.READ_WRITE,0,pagesize);
-			datafile_map.load();
-			if(debug) Log.d(TAG,"header mapping start");
-		}
-	}
-	
-	private void meta_buffer_unmap(){
-		if( datafile_map != null ){
-			datafile_map =null;
-			System.gc();
-			// unmap を明示的に行うメソッドがない
-			// GCがファイナライズを省略したらリークしてしまう？
-			if(debug) Log.d(TAG,"header mapping end");
-		}
-	}
-
-	///////////////////////////////////////////////////
-	// flock
-	// ロック状態の入れ子には対応していないので注意
-
-	/*package access*/ synchronized void lock() {
-		if( datafile_lock == null ){
-			try{
-				datafile_lock = datafile_channel.lock();
-				if(debug) Log.d(TAG,"flock start");
-			}catch(Throwable ex){
-				ex.printStackTrace();
-				throw new RuntimeException("lock failed.",ex);
-			}
-		}
-	}
-
-	/*package access*/ synchronized void unlock(){
-		if( datafile_lock != null ){
-			try{ datafile_lock.release(); }catch(Throwable ex){}
-			datafile_lock = null;
-			if(debug) Log.d(TAG,"flock end");
-		}
-	}
-
-	///////////////////////////////////////////////////
-
-
-	// メタデータの更新 をチェック
-	private boolean isMetaChanged(){
-		int version = datafile_map.getInt(4);
-		if( version != last_version ) return true;
-		
-		int hash_length = datafile_map.getInt(8);
-		if( hash_length != last_hash_length ) return true;
-
-		datafile_map.position(12);
-		for(int i=0;i<hash_length;++i){
-			if( last_hash[i] == datafile_map.get() ) continue;
-			return true;
-		}
-		return false;
-	}
-	
-	// データのロード(内部処理のみで、ロックを行わない)
-	private byte[] load_sub() throws IOException{
-		// load metadata
-		datafile_map.position(0);
-		int length_data  = datafile_map.getInt();
-		last_version	 = datafile_map.getInt();
-		last_hash_length = datafile_map.getInt();
-		datafile_map.get(last_hash,0,last_hash_length);
-
-		if(debug) Log.d(TAG,String.format( "load: datalen=%d,version=%d,digestlen=%d"
-			,length_data
-			,last_version
-			,last_hash_length
-		));
-		// read main data
-		byte[] data = new byte[length_data];
-		ByteBuffer b = ByteBuffer.wrap(data);
-		datafile_channel.position(pagesize);
-		int nRead = 0;
-		while(nRead<length_data){
-			int delta = datafile_channel.read(b);
-			if(delta <= 0 ) throw new RuntimeException(String.format("unexpected EOF (read=%d,remain=%d)",nRead,length_data-nRead));
-			nRead += delta;
-		}
-		if( length_data > 0 ){
-			// データがカラではない場合はダイジェストを確認する
-			byte[] digest = check_digest(data);
-			if( digest.length != last_hash_length ) throw new RuntimeException("datafile is broken. digest size not match.");
-			for(int i=0;i<last_hash_length;++i){
-				if( last_hash[i] != digest[i] ) throw new RuntimeException("datafile is broken. digest not match.");
-			}
-		}
-		last_data = data;
-		return data; 
-	}
-	
-	// データのセーブ(内部処理のみで、ロックを含まない)
-	private void save_sub(byte[] data) throws IOException{
-		int data_length = data.length;
-		
-		// ダイジェストを計算する
-		byte[] digest = check_digest(data);
-		
-		// バージョン番号を計算する
-		int new_version;
-		if( last_version == Integer.MAX_VALUE 
-		||	last_version <= 0
-		){
-			new_version = 1;
-		}else{
-			new_version = last_version +1;
-		}
-
-		if(debug) Log.d(TAG,String.format( "save: datalen=%d,version=%d,digestlen=%d"
-			,data_length
-			,new_version
-			,digest.length
-		));
-		
-		// データを書き込む
-		{
-			datafile_channel.position(pagesize);
-			ByteBuffer b = ByteBuffer.wrap(data);
-			int nWrite = 0;
-			while(nWrite < data_length){
-				int delta = datafile_channel.write(b);
-				nWrite += delta;
-			}
-			datafile_channel.truncate(pagesize + data_length);
-			datafile_channel.force(true);
-		}
-
-		// メタデータを書き込む
-		{
-			datafile_map.position(0);
-			datafile_map.putInt( data_length );
-			datafile_map.putInt( new_version );
-			datafile_map.putInt( digest.length );
-			datafile_map.put( digest );
-			datafile_map.force();
-		}
-
-		// バックアップファイルに書き込む
-		{
-			// make metadata bytes
-			ByteBuffer c = bb_tmp;
-			c.position(0);
-			c.putInt( data_length );
-			c.putInt( new_version );
-			c.putInt( digest.length );
-			c.put( digest );
-			c.flip();
-			// write metadata
-			backupfile_channel.position(0);
-			while( c.remaining() > 0 ){
-				backupfile_channel.write(c);
-			}
-			// write data
-			backupfile_channel.truncate(pagesize + data_length);
-			backupfile_channel.position(pagesize);
-			ByteBuffer b = ByteBuffer.wrap(data);
-			while( b.remaining() > 0 ){
-				backupfile_channel.write(b);
-			}
-			backupfile_channel.force(true);
-		}
-	}
-
-	///////////////////////////////////////////////////
-	// ユーティリティ
-
-	// Androidの非公開APIを使ってファイルパーミッションを設定する
-	public static final int set_permission(String path,int perms){
-		return set_permission(path,perms,-1,-1);
-	}
-
-	// Androidの非公開APIを使ってファイルパーミッションを設定する
-	public static final int set_permission(String path,int perms,int uid,int gid){
-		try{
-			//
-			Class<?> clazz = Class.forName("android.os.FileUtils");
-			Method method= clazz.getMethod("setPermissions",String.class ,int.class ,int.class ,int.class);
-			// 
-			return ((Integer)(method.invoke(null,path,perms,uid,gid))).intValue();
-			// returns 0 or errno
-		}catch(Throwable ex){
-			ex.printStackTrace();
-			return -1;
-		}
-	}
-
-	// ダイジェストの計算
-	public static final byte[] check_digest(byte[] data){
-		try{
-			MessageDigest digest_maker = MessageDigest.getInstance(digest_type);
-			digest_maker.update(data);
-			return digest_maker.digest();
-		}catch(NoSuchAlgorithmException ex){
-			throw new RuntimeException(ex);
-		}
-	}
-}
-
+/*
+	複数のプロセスからデータファイルの読み書きを行うためのクラスです。
+	
+	データの読み込みには byte[] load_if_update() を使います。
+	まだデータを読んだことがないか、最後に読んだあとに変更されていればデータを読み込みます。
+	
+	データの書き出しには  transaction(TransactionProc) を呼び出します。
+	古いデータを加工して新しいデータを返すようなコードを TransactionProc#update に 実装してください。
+	setGroupCommit(true) にすると、複数のスレッドから同時に呼ばれた transaction(TransactionProc) をまとめて１回で書き込みます。
+	transactionBuffer() と tryTransaction() はまとめません。
+	setDurability() で書き込み毎の同期(fsync)を減らせます。キャッシュのような失ってもよいデータ向けです。
+	tryTransaction() と tryLoad() は、他のプロセスがロックを持ち続けていても指定時間で諦めて戻ります。
+	setMetrics() で計測値の受け取り先を設定すると、ロック待ち時間や同期の時間などを記録します(SimpleMetrics で集計できます)。
+	再利用するバッファなどから書き込む場合は transactionBuffer(BufferTransactionProc) を使うと、バイト配列へのコピーを省けます。
+	
+	setLogCompactor() を設定したあと append(byte[]) を使うと、変更分のレコードをファイルの後ろに追記します(ログモード)。
+	load_log_if_update() は前回読んだ後に追記されたレコードだけを返します。
+	ログがスナップショットの一定の割合を超えると、LogCompactor で合成してスナップショットを書き直します。
+	
+	更新の通知を受けるには addUpdateListener(UpdateListener) を使います。
+	リスナの数に関わらず、ファイルごとに１つの監視(UpdateWatcher)でヘッダのバージョン番号を確認します。
+	
+	特徴
+	- 読み書きの際に flock (javaのFileLock) を取得して排他を行います。
+	  読み込みは共有ロックなので、読み込むだけのプロセス同士は互いを待ちません。
+	  更新がなければ mmap したヘッダのバージョン番号を見るだけで、ロックは取りません。
+	  更新があった場合も、まずヘッダのシーケンス番号で書き込みと重ならなかったか確認しながらロックなしで読みます。
+	- ヘッダ部分をmmap(javaの MappedByteBuffer)でメモリにマッピングして、更新チェックの負荷を下げています。
+	- データのSHA-1ダイジェストをヘッダに格納して、ロード時にチェックを行います。
+	  setDigestType() で CRC32 や xxHash64 に変更できます。種類はヘッダに記録されます。
+	- 保存時にバックアップファイルを作成するのでデータ破損に強い？かもしれません。破損の仕方にもよりますが。
+	  setSnapshotFile(true) にすると、バックアップの代わりにスナップショットファイルを rename で置き換えて書き込みます。
+
+	注意点
+	- このクラスは実際にはデータファイルとバックアップファイルの２つのファイルを作成/更新します
+	  setSnapshotFile(true) の場合はスナップショットファイル(.snapshot)と書き込み中の一時ファイルも使います
+	- MappedByteBuffer は明示的に unmapを行うことができません。gcまかせです。
+	- MappedByteBuffer.force() の結果が別プロセス上のマッピングにすぐに伝達されるかどうかは未定義です。
+	- ファイル全体がメモリに収まるような用途しか想定してません。
+	  setMappedRead(true) にするとデータ領域も読み取り専用でマップし、読み込み時にコピーを行いません。
+	- 他のプロセスのマッピングを壊さないよう、データファイルは書き込み時に縮めません。
+*/
+
+package jp.juggler.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+public class TransactionalFileAccess {
+	static final String TAG="TransactionalFileAccess";
+	public static boolean debug = false;
+
+	// ダイジェスト計算に使うアルゴリズム
+	public static final String digest_type = "SHA-1";
+
+	// ダイジェストの種類。ヘッダに記録するので、読み込み時は書いた側の種類で確認する
+	public static final int digest_sha1 = 0; // 古い形式のファイルはこれ
+	public static final int digest_crc32 = 1;
+	public static final int digest_xxhash64 = 2;
+
+	// 書き込みの永続性
+	public static final int durability_full = 0; // ファイルのメタデータも含めて毎回同期する(既定)
+	public static final int durability_data_only = 1; // 毎回同期するが、ファイルのメタデータは同期しない(fdatasync相当)
+	public static final int durability_deferred = 2; // 同期はバックグラウンドでまとめて行う
+	public static final int durability_none = 3; // 同期しない。書き込みはOSに任せる
+
+	// 計測値の種類。時間はナノ秒
+	public static final int metric_lock_wait = 0; // flock の取得待ち時間
+	public static final int metric_lock_hold = 1; // flock を持っていた時間
+	public static final int metric_load_bytes = 2; // 読み込んだバイト数
+	public static final int metric_save_bytes = 3; // 書き込んだバイト数(バックアップファイルへの書き込みを含む)
+	public static final int metric_digest = 4; // ダイジェストの計算時間
+	public static final int metric_fsync = 5; // 同期(force)の時間
+	public static final int metric_reload = 6; // load_xxx_if_update() やトランザクションが更新を検出して読み直した回数(自分の書き込みの後も含む)
+	public static final int metric_reload_skip = 7; // load_xxx_if_update() やトランザクションが更新なしで読まなかった回数
+	public static final int metric_read_conflict = 8; // ロックなしの読み込みが書き込みと重なった回数
+	public static final int metric_restore = 9; // 開く時にバックアップなどからリストアした回数
+	public static final int metric_initialize = 10; // 開く時にデータを初期化した回数
+	public static final int metric_lock_timeout = 11; // tryXXX() がロックを取れずに戻った回数
+	public static final int metric_reload_other = 12; // metric_reload のうち、このインスタンス以外の書き込みを読み直した回数
+	public static final int metric_count = 13;
+	public static final String[] metric_names = new String[]{
+		"lock_wait","lock_hold","load_bytes","save_bytes","digest","fsync"
+		,"reload","reload_skip","read_conflict","restore","initialize","lock_timeout"
+		,"reload_other"
+	};
+	public static final boolean[] metric_is_time = new boolean[]{
+		true,true,false,false,true,true
+		,false,false,false,false,false,false
+		,false
+	};
+
+	// 仮想メモリのページサイズ。実際には FileChannel#map が適当に調整してくれるはず…
+	public static final int pagesize = 4096;
+
+	// ヘッダの配置
+	// 0:データ長 4:バージョン 8:ダイジェスト長 12:ダイジェスト
+	// 以下は拡張ヘッダ。古い形式のファイルではゼロのまま
+	static final int ofs_log_length = 256; // スナップショットの後ろに追記されたログの長さ
+	static final int ofs_snapshot_version = 260; // スナップショットを書いた時のバージョン
+	static final int ofs_digest_type = 264; // ダイジェストの種類
+	static final int ofs_seq = 268; // 書き込み中は奇数になるシーケンス番号
+	static final int ofs_storage = 272; // スナップショットの置き場所
+	static final int ofs_counter_seq = 276; // カウンタ領域の書き込み中は奇数になるシーケンス番号
+	static final int ofs_counter = 2048; // カウンタ領域。スロットごとに 名前のハッシュ(8バイト),値(8バイト)
+	public static final int counter_slots = 128;
+
+	// スナップショットの置き場所
+	static final int storage_inline = 0; // データファイルのヘッダの後ろ
+	static final int storage_snapshot_file = 1; // スナップショットファイル。データファイルにはヘッダとログだけがある
+
+	// ログレコードのヘッダ。レコード長,バージョン,CRC32
+	static final int log_header_size = 12;
+
+	// トランザクションのデータ計算インタフェース
+	// update() が null を返したら何も書き込まない
+	public interface TransactionProc{
+		byte[] update(byte[] old);
+	}
+
+	// 書き込むデータを ByteBuffer で返すトランザクションのインタフェース
+	// position から limit までを書き込む。バッファの内容はトランザクションが終わるまで変更しないこと
+	public interface BufferTransactionProc{
+		ByteBuffer update(byte[] old);
+	}
+
+	// 他のプロセス(または自プロセス)による更新の通知を受けるインタフェース
+	public interface UpdateListener{
+		void onUpdate(TransactionalFileAccess file);
+	}
+
+	// ログモードで追記されたレコードをスナップショットに合成するインタフェース
+	public interface LogCompactor{
+		byte[] compact(byte[] snapshot,List<byte[]> records);
+	}
+
+	// load_log() の結果
+	public static final class LogData{
+		// 読み直したスナップショット。nullなら前回読んだスナップショットから変わっていない
+		// setMappedRead(true) の場合、LogReader に渡されるのはマップしたデータ領域の読み取り専用ビュー
+		public final ByteBuffer snapshot;
+		// 前回読んだ位置より後に追記されたレコード
+		public final ArrayList<byte[]> records;
+		// 読み込んだ時点のバージョン
+		public final int version;
+
+		LogData(ByteBuffer snapshot,ArrayList<byte[]> records,int version){
+			this.snapshot = snapshot;
+			this.records = records;
+			this.version = version;
+		}
+	}
+
+	// 読み込みのロックを持ったまま LogData を処理するインタフェース
+	// マップしたビューは他のプロセスが書き込むと内容が変わるので、read() の外に持ち出さないこと
+	public interface LogReader<T>{
+		T read(LogData data);
+	}
+
+	// 計測値の受け取り先。setMetrics() で設定する
+	// ロックの中から呼ばれることがあるので、すぐに戻ること
+	public interface Metrics{
+		void record(TransactionalFileAccess file,int metric,long value);
+	}
+
+	// 更新を検出する方法。setUpdateWatcher() で差し替えられる
+	public interface UpdateWatcher{
+		// 更新されたかもしれない時に callback を呼び出すこと。余分に呼び出すのは構わない
+		void start(TransactionalFileAccess file,Runnable callback);
+		// 監視を止める。リスナの管理のロックを持ったまま呼ばれるので、実行中の callback の終了を待たずに戻ること
+		// 監視スレッドへの割り込みはしないこと(ファイルの I/O 中だとチャネルが閉じてしまう)
+		void stop();
+	}
+	
+	////////////////////////////////////////
+	// 変数
+	
+	// ファイルのパーミッション
+	public final int permission;
+
+	// データファイル
+	public final File        datafile;
+	private RandomAccessFile datafile_handle;
+	private FileChannel      datafile_channel;
+	private FileLock         datafile_lock;
+	private volatile MappedByteBuffer datafile_map;
+	private MappedByteBuffer data_map; // データ領域の読み取り専用マッピング
+	private boolean bMappedRead = false;
+
+	// バックアップファイル
+	public final File        backupfile;
+	private RandomAccessFile backupfile_handle;
+	private FileChannel      backupfile_channel;
+
+	// スナップショットファイル。setSnapshotFile(true) の場合にだけ使う
+	public final File        snapshotfile;
+	private final File       snapshot_tmpfile;
+	private boolean bSnapshotFile = false;
+
+	// save_sub や validate_file で使うバッファ
+	ByteBuffer bb_tmp = ByteBuffer.allocate(pagesize);
+	
+	// 最後にロードしたデータ
+	private int last_version = -1;
+	private int last_hash_length = -1;
+	private byte[] last_hash = new byte[pagesize];
+	private byte[] last_data;
+	private boolean bLastDataStale = false; // last_data の後ろにログが追記されている
+
+	// このインスタンスが最後に書き込んだバージョン。読み直しが他の書き込みによるものか区別する
+	private int last_save_version = -1;
+
+	// ダイジェスト
+	private int write_digest_type = digest_sha1;
+	private final DigestMaker[] digest_makers = new DigestMaker[3];
+
+	// ログモード
+	private LogCompactor log_compactor;
+	private float compact_ratio = 1.0f;
+	private int last_log_length = 0;
+	private int last_snapshot_version = -1;
+
+	// ロックを取らずに読む試行回数
+	private int optimistic_retry = 3;
+
+	// 書き込みの永続性
+	private int durability = durability_full;
+	private long deferred_sync_interval = 1000;
+	private boolean bSyncPending = false;
+	private DeferredSyncer deferred_syncer;
+
+	// 計測。null なら時刻の取得も行わない
+	private volatile Metrics metrics;
+	private long lock_start;
+
+	/////////////////////////////////////////////////////
+
+	public TransactionalFileAccess(String path,int permission,boolean bOpen) throws IOException{
+		this.datafile = new File(path);
+		this.backupfile = new File(path+".bak" );
+		this.snapshotfile = new File(path+".snapshot");
+		this.snapshot_tmpfile = new File(path+".snapshot.tmp");
+		this.permission = permission;
+		if(bOpen) open();
+	}
+
+	/*package access*/  File getDataFile(){ return datafile;}
+	/*package access*/  File getBackupFile(){ return backupfile;}
+	/*package access*/  int getPermission(){ return permission;}
+	
+	// 開く
+	public synchronized void open() throws IOException{
+		if( datafile_handle != null ) throw new IllegalStateException("already open.");
+
+		try{
+			//
+			datafile_handle = new RandomAccessFile(datafile, "rw");
+			set_permission(datafile.getPath(),permission);
+			datafile_channel = datafile_handle.getChannel();
+			//
+			backupfile_handle = new RandomAccessFile(backupfile, "rw");
+			set_permission(backupfile.getPath(),permission);
+			backupfile_channel = backupfile_handle.getChannel();
+			//
+			lock();
+			try{
+				meta_buffer_map();
+			}finally{
+				unlock();
+			}
+		}catch(IOException ex){
+			close();
+			throw ex;
+		}
+	}
+	
+	// 閉じる
+	public synchronized void close(){
+		sync_pending();
+		stop_deferred_sync();
+		unlock();
+		meta_buffer_unmap();
+
+		if( datafile_channel != null ){
+			try{ datafile_channel.close(); }catch(Throwable ex){}
+			datafile_channel = null;
+		}
+		if( datafile_handle != null ){
+			try{ datafile_handle.close(); } catch(Throwable ex){}
+			datafile_handle = null; 
+		}
+		if( backupfile_channel != null ){
+			try{ backupfile_channel.close(); }catch(Throwable ex){}
+			backupfile_channel = null;
+		}
+		if( backupfile_handle != null ){
+			try{ backupfile_handle.close(); } catch(Throwable ex){}
+			backupfile_handle = null; 
+		}
+	}
+	
+	// 閉じて、データとメタデータを削除して、開き直す
+	public synchronized void create() throws IOException {
+		close();
+		datafile.delete();
+		backupfile.delete();
+		snapshotfile.delete();
+		snapshot_tmpfile.delete();
+		
+		open();
+	}
+
+
+	// データの強制ロード
+	public synchronized byte[] load() throws IOException{
+		return read_sub(read_data_proc,true);
+	}
+
+	// データが更新されていればロード,でなければnullを返す
+	public synchronized byte[] load_if_update() throws IOException{
+		// ロック前にversionだけ見て大雑把に確認する
+		int version = datafile_map.getInt(4);
+		if( version == last_version ){
+			if( metrics != null ) record(metric_reload_skip,1);
+			return null;
+		}
+		// 確認しなおしてロード
+		return read_sub(read_data_proc,false);
+	}
+	
+	// 最後に読んだデータを取得
+	public synchronized byte[] getLastLoad(){
+		return last_data;
+	}
+
+	// transaction update 
+	public void transaction(TransactionProc proc) throws IOException {
+		if( bGroupCommit ){
+			transaction_group(proc);
+			return;
+		}
+		synchronized(this){
+			lock();
+			try{
+				transaction_sub(proc);
+			}finally{
+				unlock();
+			}
+		}
+	}
+
+	// transaction update 
+	// エンコーダの再利用バッファなどを、バイト配列にコピーせずにそのまま書き込む
+	// TransactionProc と引数の形が同じで transaction() の多重定義にすると曖昧になるので、名前を分けている
+	public synchronized void transactionBuffer(BufferTransactionProc proc) throws IOException {
+		lock();
+		try{
+			transaction_buffer_sub(proc);
+		}finally{
+			unlock();
+		}
+	}
+
+	// 読んで更新して書き込む(内部処理のみで、ロックを行わない)
+	private void transaction_sub(TransactionProc proc) throws IOException {
+		byte[] old_data = load_for_update();
+		// update
+		byte[] new_data;
+		try{
+			new_data = proc.update(old_data);
+		}catch(RuntimeException ex){
+			// old_data を書き換えたかもしれないので、次は読み直す
+			forget_last_load();
+			throw ex;
+		}
+		if( new_data != null ) save_sub(ByteBuffer.wrap(new_data));
+	}
+
+	private void transaction_buffer_sub(BufferTransactionProc proc) throws IOException {
+		byte[] old_data = load_for_update();
+		// update
+		ByteBuffer new_data;
+		try{
+			new_data = proc.update(old_data);
+		}catch(RuntimeException ex){
+			// old_data を書き換えたかもしれないので、次は読み直す
+			forget_last_load();
+			throw ex;
+		}
+		if( new_data != null ) save_sub(new_data.slice());
+	}
+	
+	// トランザクションの更新前のデータ(内部処理のみで、ロックを行わない)
+	private byte[] load_for_update() throws IOException{
+		try{
+			if( isMetaChanged() ){
+				byte[] data = load_sub();
+				if( metrics != null ) record_reload();
+				return data;
+			}
+			if( bLastDataStale ) return load_sub();
+			if( metrics != null ) record(metric_reload_skip,1);
+			return last_data;
+		}catch(FileNotFoundException ex){
+			// データファイル自体がない場合だけ null を返す。
+			// ヘッダがスナップショットファイルを指しているのにそれがない場合は、null から作り直して他のデータを消さないよう例外にする
+			if( datafile.exists() ) throw ex;
+			return null;
+		}
+	}
+	
+	/////////////////////////////////////////////////////////////
+	// グループコミット
+	// 複数のスレッドが同時に transaction(TransactionProc) を呼んだ場合、待っている間に溜まった更新処理を
+	// 先に順番を得たスレッドが１回のロックの中で順に適用し、まとめて１回だけ書き込む。
+	// 各スレッドの transaction() は自分の更新を含む書き込みが終わってから戻る。
+	// 更新処理は前の更新処理の結果を old として受け取る。例外を出した更新処理は飛ばして、その呼び出し元にだけ例外を返す。
+	// 例外を出す場合は old を書き換えないこと
+
+	private volatile boolean bGroupCommit = false;
+	private final ArrayList<GroupEntry> group_queue = new ArrayList<GroupEntry>();
+	private boolean bGroupLeader = false; // まとめて書き込むスレッドがいる
+
+	public void setGroupCommit(boolean bGroupCommit){
+		this.bGroupCommit = bGroupCommit;
+	}
+
+	// 待っている更新処理。bDone と error は group_queue のロックを持った状態で読み書きする
+	private static final class GroupEntry{
+		final TransactionProc proc;
+		boolean bDone;
+		Throwable error;
+
+		GroupEntry(TransactionProc proc){
+			this.proc = proc;
+		}
+	}
+
+	private void transaction_group(TransactionProc proc) throws IOException{
+		GroupEntry entry = new GroupEntry(proc);
+		boolean bInterrupted = false;
+		synchronized(group_queue){
+			group_queue.add(entry);
+			// 他のスレッドが書き込んでいる間は待つ。書き込み済みになったらインスタンスのロックを取らずに戻る
+			// キューに入れた更新処理は取り消せないので、割り込まれても待ち続ける
+			while( bGroupLeader && !entry.bDone ){
+				try{
+					group_queue.wait();
+				}catch(InterruptedException ex){
+					bInterrupted = true;
+				}
+			}
+			if( !entry.bDone ) bGroupLeader = true;
+		}
+		// 割り込みの状態は呼び出し元に返す
+		if( bInterrupted ) Thread.currentThread().interrupt();
+		if( !entry.bDone ){
+			GroupEntry[] list;
+			synchronized(group_queue){
+				list = group_queue.toArray(new GroupEntry[group_queue.size()]);
+				group_queue.clear();
+			}
+			try{
+				synchronized(this){
+					commit_group(list);
+				}
+			}finally{
+				synchronized(group_queue){
+					for( GroupEntry e : list ){
+						e.bDone = true;
+					}
+					bGroupLeader = false;
+					group_queue.notifyAll();
+				}
+			}
+		}
+		Throwable error;
+		synchronized(group_queue){
+			error = entry.error;
+		}
+		if( error == null ) return;
+		if( error instanceof IOException ) throw (IOException)error;
+		if( error instanceof RuntimeException ) throw (RuntimeException)error;
+		throw (Error)error;
+	}
+
+	// 溜まっていた更新処理をまとめて書き込む(インスタンスのロックを持った状態で呼ぶ)
+	private void commit_group(GroupEntry[] list){
+		if(debug) Log.d(TAG,String.format("group commit: %d transactions",list.length));
+		try{
+			lock();
+			try{
+				byte[] data = load_for_update();
+				int nUpdated = 0;
+				boolean bChanged = false;
+				for( GroupEntry entry : list ){
+					try{
+						byte[] new_data = entry.proc.update(data);
+						++nUpdated;
+						// null なら前のデータのまま
+						if( new_data != null ){
+							data = new_data;
+							bChanged = true;
+						}
+					}catch(Throwable ex){
+						entry.error = ex;
+					}
+				}
+				// 全ての更新処理が失敗するか null を返したら書き込まない
+				if( bChanged ) save_sub(ByteBuffer.wrap(data));
+				if( nUpdated < list.length ) forget_last_load();
+			}finally{
+				unlock();
+			}
+		}catch(Throwable ex){
+			// 読み書きに失敗したらグループ全体の失敗
+			forget_last_load();
+			for( GroupEntry entry : list ){
+				if( entry.error == null ) entry.error = ex;
+			}
+		}
+	}
+
+	/////////////////////////////////////////////////////////////
+	// ヘッダのカウンタ
+	// ヘッダのページの後半を名前付きの long カウンタに使う。
+	// 加算は排他ロックの中でヘッダの8バイトを書き換えるだけで、データの読み書きやバージョン番号の更新は行わない。
+	// カウンタ専用のシーケンス番号(ofs_counter_seq)を使うので、カウンタの加算はロックなしのデータの読み込みと衝突しない。
+	// カウンタの変更は更新の通知の対象外。
+	// バックアップファイルにはデータを保存した時点の値しか残らないので、リストアするとそこまで戻る。
+
+	// 名前に対応する値を加算して、加算後の値を返す
+	public synchronized long counter_add(String name,long delta) throws IOException{
+		long hash = counter_hash(name);
+		lock();
+		try{
+			int ofs = find_counter(hash,true);
+			if( ofs < 0 ) throw new IllegalStateException("no free counter slot.");
+			seq_begin(ofs_counter_seq);
+			datafile_map.putLong(ofs,hash);
+			long value = datafile_map.getLong(ofs+8) + delta;
+			datafile_map.putLong(ofs+8,value);
+			seq_end(ofs_counter_seq);
+			sync_header();
+			return value;
+		}finally{
+			unlock();
+		}
+	}
+
+	// 名前に対応する値を返す。まだなければ 0
+	// 32ビット環境では long の読み込みが分割されうるので、シーケンス番号で確認する
+	public synchronized long counter_get(String name) throws IOException{
+		long hash = counter_hash(name);
+		for(int i=0;i<optimistic_retry;++i){
+			int seq = datafile_map.getInt(ofs_counter_seq);
+			if( (seq & 1) != 0 ){
+				Thread.yield();
+				continue;
+			}
+			int ofs = find_counter(hash,false);
+			long value = ( ofs < 0 ? 0 : datafile_map.getLong(ofs+8) );
+			if( datafile_map.getInt(ofs_counter_seq) == seq ) return value;
+		}
+		lock_shared();
+		try{
+			int ofs = find_counter(hash,false);
+			return ofs < 0 ? 0 : datafile_map.getLong(ofs+8);
+		}finally{
+			unlock();
+		}
+	}
+
+	// スロットを探す。bCreate なら空きスロットの位置も返す。見つからなければ -1
+	private int find_counter(long hash,boolean bCreate){
+		int start = (int)( ( hash & 0x7fffffff ) % counter_slots );
+		for(int i=0;i<counter_slots;++i){
+			int ofs = ofs_counter + 16 * ( ( start + i ) % counter_slots );
+			long h = datafile_map.getLong(ofs);
+			if( h == hash ) return ofs;
+			if( h == 0 ) return bCreate ? ofs : -1;
+		}
+		return -1;
+	}
+
+	// 64ビット FNV-1a。0 は空きスロットを示すので使わない
+	private static long counter_hash(String name){
+		long h = 0xcbf29ce484222325L;
+		for(int i=0,ie=name.length();i<ie;++i){
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	/////////////////////////////////////////////////////////////
+	// ログモード
+	// 変更分のレコードをスナップショットの後ろに追記する。
+	// ログの長さがスナップショットの compact_ratio 倍を超えたら、合成してスナップショットを書き直す。
+	// ログのあるファイルを読むには、どのプロセスでも setLogCompactor() が必要です
+
+	public synchronized void setLogCompactor(LogCompactor compactor){
+		this.log_compactor = compactor;
+	}
+
+	public synchronized void setCompactRatio(float ratio){
+		this.compact_ratio = ratio;
+	}
+
+	// スナップショットと全てのレコードを読む
+	public synchronized LogData load_log() throws IOException{
+		return read_sub(new ReadProc<LogData>(){
+			@Override
+			LogData read() throws IOException{
+				return load_log_sub(true,false);
+			}
+		},true);
+	}
+
+	// 更新されていれば読む。ログが追記されただけならスナップショットは読まずに新しいレコードだけを返す
+	public synchronized LogData load_log_if_update() throws IOException{
+		int version = datafile_map.getInt(4);
+		if( version == last_version ){
+			if( metrics != null ) record(metric_reload_skip,1);
+			return null;
+		}
+		return read_sub(new ReadProc<LogData>(){
+			@Override
+			LogData read() throws IOException{
+				return load_log_sub(false,false);
+			}
+		},false);
+	}
+
+	// load_log() と同じだが、読み込んだデータを reader で処理する
+	// setMappedRead(true) なら、スナップショットはコピーせずにマップしたビューを渡す
+	// ロックを取らずに読んだ場合、reader の処理中に他のプロセスが書き込むと結果を捨てて reader を呼び直す
+	public synchronized <T> T load_log(final LogReader<T> reader) throws IOException{
+		return read_sub(new ReadProc<T>(){
+			@Override
+			T read() throws IOException{
+				return reader.read(load_log_sub(true,bMappedRead));
+			}
+		},true);
+	}
+
+	// load_log_if_update() と同じだが、読み込んだデータを reader で処理する。更新がなければ null
+	public synchronized <T> T load_log_if_update(final LogReader<T> reader) throws IOException{
+		int version = datafile_map.getInt(4);
+		if( version == last_version ){
+			if( metrics != null ) record(metric_reload_skip,1);
+			return null;
+		}
+		return read_sub(new ReadProc<T>(){
+			@Override
+			T read() throws IOException{
+				return reader.read(load_log_sub(false,bMappedRead));
+			}
+		},false);
+	}
+
+	// load_log_if_update(reader) と同じだが、reader が差分を適用する元のデータのバージョンを base_version で指定する。
+	// 前回読んだ位置はこのインスタンスで共有されていて、transaction() なども進める。
+	// 前回読んだバージョンが base_version と違えば、差分ではなく全体を渡す。更新がなければ null
+	public synchronized <T> T load_log_if_update(final LogReader<T> reader,final int base_version) throws IOException{
+		int version = datafile_map.getInt(4);
+		if( version == base_version ){
+			if( metrics != null ) record(metric_reload_skip,1);
+			return null;
+		}
+		T result = read_sub(new ReadProc<T>(){
+			@Override
+			T read() throws IOException{
+				return reader.read(load_log_sub( last_version != base_version ,bMappedRead));
+			}
+		},true);
+		if( metrics != null ) record_reload();
+		return result;
+	}
+
+	/////////////////////////////////////////////////////////////
+	// 待ち時間の上限つきの読み書き
+	// 他のプロセスがロックを持ち続けていても、timeout ミリ秒で諦めて戻る。間隔を広げながら tryLock を繰り返す。
+	// 待つのはファイルのロックだけで、同じインスタンスを使う他のスレッドの処理が終わるのは待つ。
+	// 同じインスタンスの他のスレッドがインスタンスのロックを持ったままファイルのロック待ちをしていれば、
+	// インスタンスのロックを取らずに timeout までその終わりを待つ(wait_flock_blocking)。
+	// tryXXX() が待っている間に始まったロック待ちは、インスタンスのロックを手放しながら tryLock を繰り返す(lock_sub)。
+	// tryTransaction() はグループコミットを使わない
+
+	// tryXXX() を実行中のスレッドの数
+	private final AtomicInteger try_waiters = new AtomicInteger();
+
+	// lock_sub() がインスタンスのロックを持ったまま FileChannel.lock() でブロックしている
+	private volatile boolean bFlockBlocking = false;
+
+	// ロックを取れずに書き込まなかった場合は false を返す
+	public boolean tryTransaction(TransactionProc proc,long timeout) throws IOException {
+		try_waiters.incrementAndGet();
+		try{
+			long remain = wait_flock_blocking(timeout);
+			if( remain < 0 ) return false;
+			synchronized(this){
+				if( !try_lock_sub(false,remain) ) return false;
+				try{
+					transaction_sub(proc);
+				}finally{
+					unlock();
+				}
+				return true;
+			}
+		}finally{
+			try_waiters.decrementAndGet();
+		}
+	}
+
+	public boolean tryTransactionBuffer(BufferTransactionProc proc,long timeout) throws IOException {
+		try_waiters.incrementAndGet();
+		try{
+			long remain = wait_flock_blocking(timeout);
+			if( remain < 0 ) return false;
+			synchronized(this){
+				if( !try_lock_sub(false,remain) ) return false;
+				try{
+					transaction_buffer_sub(proc);
+				}finally{
+					unlock();
+				}
+				return true;
+			}
+		}finally{
+			try_waiters.decrementAndGet();
+		}
+	}
+
+	// load() と同じだが、ロックを取れなければ null を返す。ロックを取らない読み込みが成功すれば待たない
+	public byte[] tryLoad(long timeout) throws IOException{
+		try_waiters.incrementAndGet();
+		try{
+			long remain = wait_flock_blocking(timeout);
+			if( remain < 0 ) return null;
+			synchronized(this){
+				return read_sub(read_data_proc,true,remain);
+			}
+		}finally{
+			try_waiters.decrementAndGet();
+		}
+	}
+
+	// load_log(reader) と同じだが、ロックを取れなければ null を返す。reader は null を返さないこと
+	public <T> T tryLoadLog(final LogReader<T> reader,long timeout) throws IOException{
+		try_waiters.incrementAndGet();
+		try{
+			long remain = wait_flock_blocking(timeout);
+			if( remain < 0 ) return null;
+			synchronized(this){
+				return read_sub(new ReadProc<T>(){
+					@Override
+					T read() throws IOException{
+						return reader.read(load_log_sub(true,bMappedRead));
+					}
+				},true,remain);
+			}
+		}finally{
+			try_waiters.decrementAndGet();
+		}
+	}
+
+	// 他のスレッドがインスタンスのロックを持ったままファイルのロック待ちをしている間は、インスタンスのロックを取らずに待つ。
+	// 残りの待ち時間(ミリ秒)を返す。timeout までに終わらなければ -1
+	// try_waiters を増やしてから呼ぶこと。以後のロック待ちはインスタンスのロックを手放すので、ここを抜ければ待たされない
+	private long wait_flock_blocking(long timeout){
+		long end = System.nanoTime() + timeout * 1000000L;
+		long interval = 1;
+		while( bFlockBlocking ){
+			long remain = ( end - System.nanoTime() ) / 1000000L;
+			if( remain <= 0 ){
+				if(debug) Log.d(TAG,"flock timeout (other thread is waiting)");
+				if( metrics != null ) record(metric_lock_timeout,1);
+				return -1;
+			}
+			try{
+				Thread.sleep(Math.min(interval,remain));
+			}catch(InterruptedException ex){
+				// 割り込みは呼び出し元に伝える
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			interval = Math.min(interval * 2,try_lock_interval_max);
+		}
+		return Math.max(0,( end - System.nanoTime() ) / 1000000L);
+	}
+
+	/////////////////////////////////////////////////////////////
+	// ロックを取らない読み込み
+	// 書き込む側はヘッダのシーケンス番号を書き込みの前後で１つずつ進める(書き込み中は奇数)。
+	// 読む側はロックを取らずに読み、読む前と後でシーケンス番号が同じ偶数なら成功とする。
+	// 書き込みと重なったらやり直し、optimistic_retry 回失敗したら共有ロックを取って読む。
+	// シーケンス番号を進めない古いバージョンが書き込んだ場合に備えて、バージョン番号とダイジェストも確認する
+
+	// 0 ならロックを取らない読み込みを行わない
+	public synchronized void setOptimisticRead(int max_retry){
+		this.optimistic_retry = max_retry;
+	}
+
+	// 読み込み処理。ロックの有無に関わらず同じ処理を行う
+	private abstract class ReadProc<T>{
+		abstract T read() throws IOException;
+	}
+
+	private final ReadProc<byte[]> read_data_proc = new ReadProc<byte[]>(){
+		@Override
+		byte[] read() throws IOException{
+			return load_sub();
+		}
+	};
+
+	// bForce でなければ、更新がない場合は null を返す
+	private <T> T read_sub(ReadProc<T> proc,boolean bForce) throws IOException{
+		return read_sub(proc,bForce,-1);
+	}
+
+	// timeout が 0 以上なら、共有ロックを timeout ミリ秒待っても取れない場合に null を返す
+	private <T> T read_sub(ReadProc<T> proc,boolean bForce,long timeout) throws IOException{
+		for(int i=0;i<optimistic_retry;++i){
+			int seq = datafile_map.getInt(ofs_seq);
+			if( (seq & 1) != 0 ){
+				// 書き込み中
+				Thread.yield();
+				continue;
+			}
+			int version = datafile_map.getInt(4);
+			T result = null;
+			boolean bOk;
+			try{
+				if( bForce || isMetaChanged() ) result = proc.read();
+				bOk = ( datafile_map.getInt(ofs_seq) == seq && !isMetaChanged() );
+			}catch(IOException ex){
+				// 書き込みと重なったのでなければ、チャネルが閉じているなどの本当のエラー
+				if( !is_write_overlapped(seq,version) ) throw read_failed(ex);
+				bOk = false;
+			}catch(RuntimeException ex){
+				// reader が出した例外も同様
+				if( !is_write_overlapped(seq,version) ) throw read_failed(ex);
+				bOk = false;
+			}
+			if( bOk ){
+				if( !bForce && metrics != null ) record_reload_result(result);
+				return result;
+			}
+			if(debug) Log.d(TAG,"optimistic read conflict.");
+			if( metrics != null ) record(metric_read_conflict,1);
+			// 読んだ状態は信用できないので、次は全体を読み直す
+			forget_last_load();
+		}
+		if( timeout < 0 ){
+			lock_shared();
+		}else if( !try_lock_sub(true,timeout) ){
+			return null;
+		}
+		try{
+			T result;
+			try{
+				result = ( bForce || isMetaChanged() ) ? proc.read() : null;
+			}catch(IOException ex){
+				throw read_failed(ex);
+			}catch(RuntimeException ex){
+				throw read_failed(ex);
+			}
+			if( !bForce && metrics != null ) record_reload_result(result);
+			return result;
+		}finally{
+			unlock();
+		}
+	}
+
+	// ロックを取らない読み込みが失敗した時に、書き込みと重なっていたか調べる
+	// seq が 0 のままなら、シーケンス番号を進めない古いバージョンが書いているかもしれないので重なったとみなす
+	private boolean is_write_overlapped(int seq,int version){
+		return seq == 0
+			|| datafile_map.getInt(ofs_seq) != seq
+			|| datafile_map.getInt(4) != version;
+	}
+
+	// 読み込みが途中で失敗した。読んだ位置などが中途半端に進んでいるかもしれないので、次は全体を読み直す
+	private <E extends Exception> E read_failed(E ex){
+		forget_last_load();
+		return ex;
+	}
+
+	private void forget_last_load(){
+		last_version = -1;
+		last_hash_length = -1;
+		last_data = null;
+		bLastDataStale = true;
+		last_log_length = 0;
+		last_snapshot_version = -1;
+	}
+
+	// 書き込みの前後にシーケンス番号を進める(内部処理のみで、ロックを行わない)
+	private void seq_begin(){
+		seq_begin(ofs_seq);
+	}
+
+	private void seq_end(){
+		seq_end(ofs_seq);
+	}
+
+	// ofs はデータの ofs_seq かカウンタの ofs_counter_seq
+	private void seq_begin(int ofs){
+		int seq = datafile_map.getInt(ofs);
+		// 前回の書き込みが途中で終わっていれば奇数のまま。それでも値は変える
+		datafile_map.putInt(ofs, seq + ( (seq & 1) == 0 ? 1 : 2 ) );
+	}
+
+	private void seq_end(int ofs){
+		datafile_map.putInt(ofs, datafile_map.getInt(ofs) + 1 );
+	}
+
+	/////////////////////////////////////////////////////////////
+	// ダイジェスト
+	// 書き込み時に使う種類を選ぶ。SHA-1 以外で書いたファイルは、この機能のない古いバージョンからは読めない
+
+	public synchronized void setDigestType(int type){
+		getDigestMaker(type);
+		this.write_digest_type = type;
+	}
+
+	// ダイジェストの計算オブジェクトはインスタンスごとに使い回す
+	private DigestMaker getDigestMaker(int type){
+		if( type < 0 || type >= digest_makers.length ) throw new RuntimeException("unknown digest type: "+type);
+		DigestMaker maker = digest_makers[type];
+		if( maker == null ){
+			switch(type){
+			case digest_sha1: maker = new Sha1DigestMaker(); break;
+			case digest_crc32: maker = new Crc32DigestMaker(); break;
+			case digest_xxhash64: maker = new XxHash64DigestMaker(); break;
+			}
+			digest_makers[type] = maker;
+		}
+		return maker;
+	}
+
+	// データの位置は変更しない
+	public interface DigestMaker{
+		byte[] digest(ByteBuffer data);
+	}
+
+	static final class Sha1DigestMaker implements DigestMaker{
+		private final MessageDigest md;
+
+		Sha1DigestMaker(){
+			try{
+				md = MessageDigest.getInstance(digest_type);
+			}catch(NoSuchAlgorithmException ex){
+				throw new RuntimeException(ex);
+			}
+		}
+
+		@Override
+		public byte[] digest(ByteBuffer data){
+			md.reset();
+			md.update(data.duplicate());
+			return md.digest();
+		}
+	}
+
+	// CRC32C は java.util.zip に無い(API level 的に使えない)ので CRC32 を使う
+	static final class Crc32DigestMaker implements DigestMaker{
+		private final CRC32 crc = new CRC32();
+		private byte[] tmp;
+
+		@Override
+		public byte[] digest(ByteBuffer data){
+			crc.reset();
+			if( data.hasArray() ){
+				crc.update(data.array(),data.arrayOffset()+data.position(),data.remaining());
+			}else{
+				// マップしたビューなど。少しずつコピーする
+				if( tmp == null ) tmp = new byte[16384];
+				ByteBuffer b = data.duplicate();
+				while( b.remaining() > 0 ){
+					int n = Math.min(tmp.length,b.remaining());
+					b.get(tmp,0,n);
+					crc.update(tmp,0,n);
+				}
+			}
+			long v = crc.getValue();
+			return new byte[]{ (byte)(v>>>24),(byte)(v>>>16),(byte)(v>>>8),(byte)v };
+		}
+	}
+
+	// xxHash64 (seed=0)
+	static final class XxHash64DigestMaker implements DigestMaker{
+		private static final long prime1 = 0x9E3779B185EBCA87L;
+		private static final long prime2 = 0xC2B2AE3D27D4EB4FL;
+		private static final long prime3 = 0x165667B19E3779F9L;
+		private static final long prime4 = 0x85EBCA77C2B2AE63L;
+		private static final long prime5 = 0x27D4EB2F165667C5L;
+
+		private static long round(long acc,long input){
+			acc += input * prime2;
+			acc = Long.rotateLeft(acc,31);
+			return acc * prime1;
+		}
+
+		private static long merge_round(long acc,long val){
+			acc ^= round(0,val);
+			return acc * prime1 + prime4;
+		}
+
+		@Override
+		public byte[] digest(ByteBuffer data){
+			ByteBuffer b = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int length = b.remaining();
+			long h;
+			if( length >= 32 ){
+				long v1 = prime1 + prime2;
+				long v2 = prime2;
+				long v3 = 0;
+				long v4 = -prime1;
+				while( b.remaining() >= 32 ){
+					v1 = round(v1,b.getLong());
+					v2 = round(v2,b.getLong());
+					v3 = round(v3,b.getLong());
+					v4 = round(v4,b.getLong());
+				}
+				h = Long.rotateLeft(v1,1) + Long.rotateLeft(v2,7) + Long.rotateLeft(v3,12) + Long.rotateLeft(v4,18);
+				h = merge_round(h,v1);
+				h = merge_round(h,v2);
+				h = merge_round(h,v3);
+				h = merge_round(h,v4);
+			}else{
+				h = prime5;
+			}
+			h += length;
+			while( b.remaining() >= 8 ){
+				h ^= round(0,b.getLong());
+				h = Long.rotateLeft(h,27) * prime1 + prime4;
+			}
+			if( b.remaining() >= 4 ){
+				h ^= ( b.getInt() & 0xFFFFFFFFL ) * prime1;
+				h = Long.rotateLeft(h,23) * prime2 + prime3;
+			}
+			while( b.remaining() > 0 ){
+				h ^= ( b.get() & 0xFF ) * prime5;
+				h = Long.rotateLeft(h,11) * prime1;
+			}
+			h ^= h >>> 33;
+			h *= prime2;
+			h ^= h >>> 29;
+			h *= prime3;
+			h ^= h >>> 32;
+			return ByteBuffer.allocate(8).putLong(h).array();
+		}
+	}
+
+	/////////////////////////////////////////////////////////////
+	// データ領域のマッピング
+	// ヘッダだけでなくデータ領域も読み取り専用でマップして、読み込み時のコピーとバッファ確保を省く。
+	// マップした領域が消えないよう、データファイルは書き込み時に縮めない(create() とリストア時を除く)
+
+	public synchronized void setMappedRead(boolean bMappedRead){
+		this.bMappedRead = bMappedRead;
+		if( !bMappedRead ) data_map = null;
+	}
+
+	// データ領域の先頭から length バイトの読み取り専用ビューを返す。足りなければマップし直す
+	private ByteBuffer map_data(int length) throws IOException{
+		if( data_map == null || data_map.capacity() < length ){
+			// ファイルの末尾までマップしておくと、データが少し増えただけならマップし直さずに済む
+			long size = Math.max( length, datafile_channel.size() - pagesize );
+			data_map = datafile_channel.map(FileChannel.MapMode.READ_ONLY,pagesize,size);
+			if(debug) Log.d(TAG,String.format("data mapping: size=%d",size));
+		}
+		ByteBuffer b = data_map.duplicate();
+		b.position(0);
+		b.limit(length);
+		return b.slice().asReadOnlyBuffer();
+	}
+
+	// レコードを追記する
+	public synchronized void append(byte[] record) throws IOException{
+		if( log_compactor == null ) throw new IllegalStateException("log compactor is not set.");
+		lock();
+		try{
+			int data_length = datafile_map.getInt(0);
+			int log_length = datafile_map.getInt(ofs_log_length);
+			boolean bSnapshotStorage = ( datafile_map.getInt(ofs_storage) == storage_snapshot_file );
+			int inline_length = ( bSnapshotStorage ? 0 : data_length );
+			int new_log_length = log_length + log_header_size + record.length;
+			// 小さいファイルでコンパクションが頻発しないよう、最低1ページ分は追記を許す
+			if( new_log_length <= compact_ratio * Math.max(data_length,pagesize) ){
+				append_sub(record,inline_length,log_length);
+			}else{
+				byte[] snapshot;
+				if( bSnapshotStorage ){
+					snapshot = read_snapshot_file(false).array();
+				}else{
+					snapshot = read_data(datafile_channel,pagesize,data_length);
+				}
+				ArrayList<byte[]> records = parse_log(read_data(datafile_channel,pagesize+inline_length,log_length));
+				records.add(record);
+				if(debug) Log.d(TAG,String.format("compaction: datalen=%d,loglen=%d,records=%d",data_length,log_length,records.size()));
+				save_sub(ByteBuffer.wrap(log_compactor.compact(snapshot,records)));
+			}
+		}finally{
+			unlock();
+		}
+	}
+
+	// ロックせずにヘッダのバージョン番号だけを読む。開いていなければ -1
+	public int peek_version(){
+		MappedByteBuffer map = datafile_map;
+		return map == null ? -1 : map.getInt(4);
+	}
+
+	/////////////////////////////////////////////////////////////
+	// 更新の通知
+	// リスナが何個登録されていても、ファイル１つにつき監視は１つだけ行う
+	// 監視の開始と停止は update_listeners のロックの中で行う。監視スレッドも同じロックを使うので、停止は監視スレッドを待たない。
+	// 解除の直後に、解除前に始まっていた通知が届くことがある
+
+	private final ArrayList<UpdateListener> update_listeners = new ArrayList<UpdateListener>();
+	private UpdateWatcher update_watcher;
+	private int last_notify_version = -1;
+
+	// 更新の検出方法を変更する。リスナ登録済みなら監視をやり直す
+	public void setUpdateWatcher(UpdateWatcher watcher){
+		synchronized(update_listeners){
+			boolean bStarted = !update_listeners.isEmpty();
+			if( bStarted ) update_watcher.stop();
+			update_watcher = watcher;
+			if( bStarted ) update_watcher.start(this,update_callback);
+		}
+	}
+
+	public void addUpdateListener(UpdateListener listener){
+		synchronized(update_listeners){
+			if( update_listeners.contains(listener) ) return;
+			update_listeners.add(listener);
+			if( update_listeners.size() == 1 ){
+				if( update_watcher == null ) update_watcher = new VersionPollWatcher(333);
+				last_notify_version = peek_version();
+				update_watcher.start(this,update_callback);
+			}
+		}
+	}
+
+	public void removeUpdateListener(UpdateListener listener){
+		synchronized(update_listeners){
+			if( !update_listeners.remove(listener) ) return;
+			if( update_listeners.isEmpty() ) update_watcher.stop();
+		}
+	}
+
+	private final Runnable update_callback = new Runnable() {
+		@Override
+		public void run() {
+			UpdateListener[] list;
+			synchronized(update_listeners){
+				int version = peek_version();
+				if( version == last_notify_version ) return;
+				last_notify_version = version;
+				list = update_listeners.toArray(new UpdateListener[update_listeners.size()]);
+			}
+			for( UpdateListener listener : list ){
+				try{
+					listener.onUpdate(TransactionalFileAccess.this);
+				}catch(Throwable ex){
+					ex.printStackTrace();
+				}
+			}
+		}
+	};
+
+	// mmapしたヘッダのバージョン番号を定期的に確認する
+	// stop() はフラグを立てて待機中のスレッドを起こすだけで、スレッドの終了は待たない。
+	// 実行中の callback はそのまま終わり、その後のループで止まる
+	public static class VersionPollWatcher implements UpdateWatcher{
+		final long interval;
+		private Poller poller;
+
+		public VersionPollWatcher(long interval){
+			this.interval = interval;
+		}
+
+		// start() ごとに作る。stop() の直後に start() されても、古いスレッドは自分のフラグを見て止まる
+		private final class Poller implements Runnable{
+			final TransactionalFileAccess file;
+			final Runnable callback;
+			private boolean bCancelled; // このオブジェクトのロックを持って読み書きする
+
+			Poller(TransactionalFileAccess file,Runnable callback){
+				this.file = file;
+				this.callback = callback;
+			}
+
+			synchronized void cancel(){
+				bCancelled = true;
+				notifyAll();
+			}
+
+			// interval だけ待つ。止められたら false
+			private synchronized boolean sleep_interval(){
+				if( bCancelled ) return false;
+				try{
+					wait(interval);
+				}catch(InterruptedException ex){
+					return false;
+				}
+				return !bCancelled;
+			}
+
+			@Override
+			public void run(){
+				int last_version = file.peek_version();
+				while( sleep_interval() ){
+					int version = file.peek_version();
+					if( version == last_version ) continue;
+					last_version = version;
+					callback.run();
+				}
+			}
+		}
+
+		@Override
+		public synchronized void start(TransactionalFileAccess file,Runnable callback){
+			if( poller != null ) poller.cancel();
+			poller = new Poller(file,callback);
+			Thread thread = new Thread(poller,"VersionPollWatcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public synchronized void stop(){
+			if( poller == null ) return;
+			poller.cancel();
+			poller = null;
+		}
+	}
+
+	// inotify(android.os.FileObserver)でバックアップファイルへの書き込みを監視する
+	// mmapしたヘッダへの書き込みは inotify に通知されないので、
+	// save_sub() の最後に書き込まれるバックアップファイルを監視している
+	// setSnapshotFile(true) で書き込むとバックアップファイルは更新されないので、更新を検出できない。
+	// スナップショットファイルを使う場合は VersionPollWatcher を使うこと
+	public static class FileObserverWatcher implements UpdateWatcher{
+		private FileObserver observer;
+
+		@Override
+		public synchronized void start(TransactionalFileAccess file,final Runnable callback){
+			observer = new FileObserver(file.backupfile.getPath(),FileObserver.MODIFY){
+				@Override
+				public void onEvent(int event, String path) {
+					callback.run();
+				}
+			};
+			observer.startWatching();
+		}
+
+		@Override
+		public synchronized void stop(){
+			if( observer == null ) return;
+			observer.stopWatching();
+			observer = null;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////
+
+	// データファイルが正常か確認する
+	private final boolean validate_file( FileChannel fc ,String name){
+		try{
+			if( fc.size() < pagesize ){
+				Log.e(TAG,String.format("%s: too small size: %s",name,fc.size()));
+				return false;
+			}
+			// ヘッダ部分を読む
+			ByteBuffer b = bb_tmp;
+			b.clear();
+			while( b.remaining() > 0 ) fc.read(b);
+			// ヘッダの内容をパース
+			b.position(0);
+			int data_length = b.getInt();
+			@SuppressWarnings("unused")
+			int version = b.getInt(); 
+			int digest_len = b.getInt();
+			byte[] digest = new byte[digest_len]; b.get( digest );
+			int log_length = b.getInt(ofs_log_length);
+			int digest_type = b.getInt(ofs_digest_type);
+			if( b.getInt(ofs_storage) == storage_snapshot_file ){
+				// データはスナップショットファイルにあるので、ここではログだけを確認する
+				// ログを追記するとヘッダのバージョンは進むので、スナップショットを書いた時のバージョンと比べる
+				if( !validate_snapshot_file(b.getInt(ofs_snapshot_version),digest_len,digest) ) return false;
+				return validate_log(fc,name,0,log_length);
+			}
+			// データを読む
+			byte[] data = new byte[data_length];
+			b = ByteBuffer.wrap(data);
+			fc.position(pagesize);
+			while( b.remaining() > 0 ){
+				int delta =fc.read(b);
+				if(delta <= 0 ){
+					Log.e(TAG,String.format("%s: data size not match. read=%s remain=%s",name,b.position(),b.remaining() ));
+					return false;
+				}
+			}
+			if( data_length > 0 ){
+				// ダイジェストを比較する
+				byte[] digest_real = getDigestMaker(digest_type).digest(ByteBuffer.wrap(data));
+				if( digest_real.length != digest_len ){
+					Log.e(TAG,String.format("%s: digest size not match. header=%s data=%s",name,digest_len,digest_real.length  ));
+					return false;
+				}
+				for(int i=0;i<digest_len;++i){
+					if( digest[i] != digest_real[i] ){
+						Log.e(TAG,String.format("%s: digest data not match.",name  ));
+						return false;
+					}
+				}
+			}
+			// OK.
+			return validate_log(fc,name,data_length,log_length);
+		}catch(Throwable ex){
+			ex.printStackTrace();
+			return false;
+		}
+	}
+
+	// ログのレコードを確認する
+	private static boolean validate_log(FileChannel fc,String name,int inline_length,int log_length){
+		if( log_length <= 0 ) return true;
+		try{
+			parse_log(read_data(fc,pagesize+inline_length,log_length));
+			return true;
+		}catch(Throwable ex){
+			Log.e(TAG,String.format("%s: log broken. %s",name,ex.getMessage()));
+			return false;
+		}
+	}
+
+	// データファイルのヘッダが指しているスナップショットファイルを確認する
+	// rename の後、データファイルのヘッダを更新する前に落ちた場合はバージョンが合わない
+	// snapshot_version はデータファイルのヘッダに記録された、スナップショットを書いた時のバージョン
+	private boolean validate_snapshot_file(int snapshot_version,int digest_len,byte[] digest){
+		if( !snapshotfile.exists() ) return false;
+		try{
+			RandomAccessFile f = new RandomAccessFile(snapshotfile,"r");
+			try{
+				FileChannel fc = f.getChannel();
+				if( !validate_file(fc,snapshotfile.getName()) ) return false;
+				ByteBuffer b = ByteBuffer.wrap(read_data(fc,0,pagesize));
+				if( b.getInt(4) != snapshot_version || b.getInt(8) != digest_len ){
+					Log.e(TAG,String.format("%s: version not match.",snapshotfile.getName()));
+					return false;
+				}
+				for(int i=0;i<digest_len;++i){
+					if( b.get(12+i) != digest[i] ){
+						Log.e(TAG,String.format("%s: digest not match.",snapshotfile.getName()));
+						return false;
+					}
+				}
+				return true;
+			}finally{
+				f.close();
+			}
+		}catch(Throwable ex){
+			ex.printStackTrace();
+			return false;
+		}
+	}
+	
+	// データファイルとバックアップファイルを確認して、必要ならリストアやデータの初期化を行う
+	private void restore_data() throws IOException{
+		//
+		if( validate_file( datafile_channel ,datafile.getName()) ) return;
+		
+		// スナップショットファイルがあれば、それが最後に書いたスナップショット
+		// スナップショットファイルを使わずに書き込む時に削除するので、バックアップファイルより新しい
+		if( snapshotfile.exists() ){
+			RandomAccessFile f = new RandomAccessFile(snapshotfile,"r");
+			try{
+				FileChannel fc = f.getChannel();
+				if( validate_file( fc,snapshotfile.getName() ) ){
+					Log.w(TAG,"restore from snapshot file..");
+					restore_from(fc);
+					snapshotfile.delete();
+					return;
+				}
+			}finally{
+				f.close();
+			}
+		}
+		
+		if( validate_file( backupfile_channel,backupfile.getName() ) ){
+			Log.w(TAG,"restore from back-up file..");
+			restore_from(backupfile_channel);
+			return;
+		}
+		
+		Log.w(TAG,String.format("initialize data file."));
+		datafile_channel.truncate(pagesize);
+		datafile_channel.position(0);
+		// 初期データはゼロフィル
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[pagesize]);
+		buffer.position(0);
+		while( buffer.remaining() > 0 ){
+			datafile_channel.write(buffer);
+		}
+		datafile_channel.force(true);
+		Log.w(TAG,String.format("initialize data file complete."));
+		if( metrics != null ) record(metric_initialize,1);
+	}
+
+	// 確認済みのファイルの内容をデータファイルにコピーする
+	private void restore_from(FileChannel src) throws IOException{
+		int length = (int)src.size();
+		src.position(0);
+		datafile_channel.position(0);
+		int nCopy = 0;
+		ByteBuffer b = ByteBuffer.allocate(16384);
+		while( nCopy < length ){
+			b.clear();
+			int nRead =  src.read(b);
+			if( nRead <= 0 ) throw new RuntimeException("backup data broken: unexpected EOF");
+			int nWrite = 0;
+			b.flip();
+			while( nWrite < nRead ){
+				int delta = datafile_channel.write(b);
+				if( delta <= 0 ) throw new RuntimeException("write failed.");
+				nWrite += delta;
+			}
+			nCopy += nWrite;
+		}
+		datafile_channel.truncate(length);
+		datafile_channel.force(true);
+		Log.w(TAG,String.format("restore data complete. copy %s bytes.",length));
+		if( metrics != null ) record(metric_restore,1);
+	}
+	//////////////////////////////////////////////////
+	// mmap 
+	
+	private void meta_buffer_map() throws IOException{
+		if( datafile_map == null ){
+			restore_data();
+			//
+			last_version = 0;
+			last_hash_length = -1;
+			last_log_length = 0;
+			last_snapshot_version = -1;
+			//
+			datafile_map = datafile_channel.map(FileChannel.MapMode.READ_WRITE,0,pagesize);
+			datafile_map.load();
+			if(debug) Log.d(TAG,"header mapping start");
+		}
+	}
+	
+	private void meta_buffer_unmap(){
+		data_map = null;
+		if( datafile_map != null ){
+			datafile_map =null;
+			System.gc();
+			// unmap を明示的に行うメソッドがない
+			// GCがファイナライズを省略したらリークしてしまう？
+			if(debug) Log.d(TAG,"header mapping end");
+		}
+	}
+
+	///////////////////////////////////////////////////
+	// flock
+	// ロック状態の入れ子には対応していないので注意
+	// 書き込みは排他ロック、読み込みだけなら共有ロックを使う。読み込み同士は他のプロセスとも待ち合わせない
+
+	/*package access*/ synchronized void lock() {
+		lock_sub(false);
+	}
+
+	/*package access*/ synchronized void lock_shared() {
+		lock_sub(true);
+	}
+
+	// 通常は FileChannel.lock() でブロックして待つ。
+	// ただし tryXXX() を実行中のスレッドがいれば、インスタンスのロックを持ったままブロックすると
+	// そのスレッドが相手の処理の間ずっと待たされるので、インスタンスのロックを wait() で手放しながら tryLock を繰り返す。
+	// bFlockBlocking を立ててから try_waiters を見るので、tryXXX() 側とどちらかが必ず相手に気付く
+	private void lock_sub(boolean bShared){
+		if( datafile_lock != null ){
+			// 共有ロックから排他ロックへの昇格はできない(デッドロックするので)
+			if( datafile_lock.isShared() && !bShared ) throw new IllegalStateException("can't upgrade shared lock.");
+			return;
+		}
+		bFlockBlocking = true;
+		if( try_waiters.get() > 0 ){
+			bFlockBlocking = false;
+			try{
+				if( !try_lock_sub(bShared,-1) ) throw new InterruptedException();
+			}catch(InterruptedException ex){
+				// 割り込みフラグは戻してから失敗にする
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("lock failed.",ex);
+			}
+			return;
+		}
+		try{
+			long t = ( metrics == null ? 0 : System.nanoTime() );
+			datafile_lock = datafile_channel.lock(0,Long.MAX_VALUE,bShared);
+			lock_acquired(bShared,t);
+		}catch(Throwable ex){
+			ex.printStackTrace();
+			throw new RuntimeException("lock failed.",ex);
+		}finally{
+			bFlockBlocking = false;
+		}
+	}
+
+	// tryLock を繰り返す間隔の上限(ミリ秒)
+	static final long try_lock_interval_max = 50;
+
+	// timeout ミリ秒までロックの取得を試みる。取れなければ false。timeout が負なら取れるまで待つ
+	// インスタンスのロックを持った状態で呼ぶこと。待つ間は wait() で手放す(tryXXX() と、それと重なった lock_sub() が使う)
+	private boolean try_lock_sub(boolean bShared,long timeout){
+		long t = System.nanoTime();
+		long end = t + timeout * 1000000L;
+		long interval = 1;
+		try{
+			for(;;){
+				if( datafile_lock != null ){
+					// 共有ロックから排他ロックへの昇格はできない(デッドロックするので)
+					if( datafile_lock.isShared() && !bShared ) throw new IllegalStateException("can't upgrade shared lock.");
+					return true;
+				}
+				// 待っている間に close() されたかもしれない
+				if( datafile_channel == null ) throw new IllegalStateException("file is closed.");
+				datafile_lock = datafile_channel.tryLock(0,Long.MAX_VALUE,bShared);
+				if( datafile_lock != null ) break;
+				long wait = interval;
+				if( timeout >= 0 ){
+					long remain = ( end - System.nanoTime() ) / 1000000L;
+					if( remain <= 0 ){
+						if(debug) Log.d(TAG,"flock timeout");
+						if( metrics != null ) record(metric_lock_timeout,1);
+						return false;
+					}
+					wait = Math.min(wait,remain);
+				}
+				wait(wait);
+				interval = Math.min(interval * 2,try_lock_interval_max);
+			}
+			lock_acquired(bShared,t);
+			return true;
+		}catch(InterruptedException ex){
+			// 割り込みは呼び出し元に伝える
+			Thread.currentThread().interrupt();
+			return false;
+		}catch(IllegalStateException ex){
+			throw ex;
+		}catch(Throwable ex){
+			ex.printStackTrace();
+			throw new RuntimeException("lock failed.",ex);
+		}
+	}
+
+	private void lock_acquired(boolean bShared,long t){
+		if( metrics != null ){
+			lock_start = System.nanoTime();
+			record(metric_lock_wait,lock_start - t);
+		}
+		if(debug) Log.d(TAG,bShared ? "flock start (shared)" : "flock start");
+	}
+
+	/*package access*/ synchronized void unlock(){
+		if( datafile_lock != null ){
+			try{ datafile_lock.release(); }catch(Throwable ex){}
+			datafile_lock = null;
+			if( metrics != null && lock_start != 0 ) record(metric_lock_hold,System.nanoTime() - lock_start);
+			lock_start = 0;
+			if(debug) Log.d(TAG,"flock end");
+			// ロック待ちの wait() を起こす
+			notifyAll();
+		}
+	}
+
+	///////////////////////////////////////////////////
+
+
+	// メタデータの更新 をチェック
+	private boolean isMetaChanged(){
+		int version = datafile_map.getInt(4);
+		if( version != last_version ) return true;
+		
+		int hash_length = datafile_map.getInt(8);
+		if( hash_length != last_hash_length ) return true;
+
+		datafile_map.position(12);
+		for(int i=0;i<hash_length;++i){
+			if( last_hash[i] == datafile_map.get() ) continue;
+			return true;
+		}
+		return false;
+	}
+	
+	// データのロード(内部処理のみで、ロックを行わない)
+	// ログがあればスナップショットに合成したデータを返す
+	private byte[] load_sub() throws IOException{
+		LogData log_data = load_log_sub(true,false);
+		byte[] data = log_data.snapshot.array();
+		if( !log_data.records.isEmpty() ){
+			if( log_compactor == null ) throw new RuntimeException("datafile has log records. log compactor is not set.");
+			data = log_compactor.compact(data,log_data.records);
+		}
+		last_data = data;
+		bLastDataStale = false;
+		return data;
+	}
+
+	// スナップショットとログのロード(内部処理のみで、ロックを行わない)
+	// bMapped ならスナップショットはマップしたビューを返す
+	private LogData load_log_sub(boolean bFull,boolean bMapped) throws IOException{
+		// load metadata
+		datafile_map.position(0);
+		int length_data  = datafile_map.getInt();
+		int version      = datafile_map.getInt();
+		int hash_length  = datafile_map.getInt();
+		int log_length   = datafile_map.getInt(ofs_log_length);
+		int snapshot_version = datafile_map.getInt(ofs_snapshot_version);
+		int digest_type = datafile_map.getInt(ofs_digest_type);
+		boolean bSnapshotStorage = ( datafile_map.getInt(ofs_storage) == storage_snapshot_file );
+		int inline_length = ( bSnapshotStorage ? 0 : length_data );
+
+		if(debug) Log.d(TAG,String.format( "load: datalen=%d,version=%d,digestlen=%d,loglen=%d"
+			,length_data
+			,version
+			,hash_length
+			,log_length
+		));
+
+		// 前回と同じスナップショットにログが追記されただけなら、スナップショットは読まない
+		// 古い形式のファイルでは snapshot_version がゼロのまま
+		boolean bSnapshotChanged = ( bFull
+			|| snapshot_version == 0
+			|| snapshot_version != last_snapshot_version
+			|| log_length < last_log_length
+		);
+
+		ByteBuffer snapshot = null;
+		int log_start = 0;
+		if( bSnapshotChanged ){
+			datafile_map.get(last_hash,0,hash_length);
+			last_hash_length = hash_length;
+			// read main data
+			byte[] data = null;
+			if( bSnapshotStorage ){
+				// スナップショットファイルは書き換えられないので、開いたファイルの内容は変わらない
+				// ダイジェストはファイル自身のヘッダで確認する
+				snapshot = read_snapshot_file(bMapped);
+				if( !bMapped ) data = snapshot.array();
+			}else if( bMapped ){
+				snapshot = map_data(length_data);
+			}else{
+				data = read_data(datafile_channel,pagesize,length_data);
+				snapshot = ByteBuffer.wrap(data);
+			}
+			if( length_data > 0 && !bSnapshotStorage ){
+				// データがカラではない場合はダイジェストを確認する
+				byte[] digest = make_digest(digest_type,snapshot);
+				if( digest.length != last_hash_length ) throw new RuntimeException("datafile is broken. digest size not match.");
+				for(int i=0;i<last_hash_length;++i){
+					if( last_hash[i] != digest[i] ) throw new RuntimeException("datafile is broken. digest not match.");
+				}
+			}
+			last_data = data;
+		}else{
+			log_start = last_log_length;
+		}
+		ArrayList<byte[]> records = parse_log(read_data(datafile_channel,pagesize+inline_length+log_start,log_length-log_start));
+		if( metrics != null ) record(metric_load_bytes,( bSnapshotChanged ? length_data : 0 ) + log_length - log_start);
+
+		last_version = version;
+		last_log_length = log_length;
+		last_snapshot_version = snapshot_version;
+		bLastDataStale = ( log_length > 0 || last_data == null );
+		return new LogData(snapshot,records,version);
+	}
+
+	// ファイルの指定範囲を読む
+	private static byte[] read_data(FileChannel fc,long position,int length) throws IOException{
+		byte[] data = new byte[length];
+		ByteBuffer b = ByteBuffer.wrap(data);
+		fc.position(position);
+		int nRead = 0;
+		while(nRead<length){
+			int delta = fc.read(b);
+			if(delta <= 0 ) throw new RuntimeException(String.format("unexpected EOF (read=%d,remain=%d)",nRead,length-nRead));
+			nRead += delta;
+		}
+		return data;
+	}
+
+	// ファイルの指定位置に書く
+	private static void write_data(FileChannel fc,long position,ByteBuffer b) throws IOException{
+		fc.position(position);
+		while( b.remaining() > 0 ){
+			fc.write(b);
+		}
+	}
+
+	// ログ領域をレコードに分解する。壊れていれば例外を出す
+	private static ArrayList<byte[]> parse_log(byte[] log){
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		ByteBuffer b = ByteBuffer.wrap(log);
+		while( b.remaining() > 0 ){
+			if( b.remaining() < log_header_size ) throw new RuntimeException("log broken. truncated header.");
+			int length = b.getInt();
+			@SuppressWarnings("unused")
+			int version = b.getInt();
+			int crc = b.getInt();
+			if( length < 0 || length > b.remaining() ) throw new RuntimeException("log broken. bad record length.");
+			byte[] record = new byte[length];
+			b.get(record);
+			if( check_crc32(record) != crc ) throw new RuntimeException("log broken. crc not match.");
+			records.add(record);
+		}
+		return records;
+	}
+
+	// 次のバージョン番号
+	private static int next_version(int version){
+		if( version == Integer.MAX_VALUE || version <= 0 ) return 1;
+		return version +1;
+	}
+
+	// バックアップファイルのヘッダにデータファイルのヘッダをそのまま書き込む
+	private void write_backup_header() throws IOException{
+		ByteBuffer c = datafile_map.duplicate();
+		c.clear();
+		write_data(backupfile_channel,0,c);
+	}
+
+	// データのセーブ(内部処理のみで、ロックを含まない)
+	// data の position から limit までを書き込む。data の位置は変更しない
+	private void save_sub(ByteBuffer data) throws IOException{
+		int data_length = data.remaining();
+		
+		// ダイジェストを計算する
+		int digest_type = write_digest_type;
+		byte[] digest = make_digest(digest_type,data);
+		
+		// バージョン番号を計算する
+		int new_version = next_version(datafile_map.getInt(4));
+
+		if(debug) Log.d(TAG,String.format( "save: datalen=%d,version=%d,digestlen=%d"
+			,data_length
+			,new_version
+			,digest.length
+		));
+		
+		if( bSnapshotFile ){
+			save_snapshot_file(data,new_version,digest,digest_type);
+			last_save_version = new_version;
+			if( metrics != null ) record(metric_save_bytes,data_length);
+			return;
+		}
+		if( metrics != null ) record(metric_save_bytes,data_length * 2L);
+		boolean bHadSnapshotFile = ( datafile_map.getInt(ofs_storage) == storage_snapshot_file );
+		
+		seq_begin();
+
+		// データを書き込む。ログは捨てる
+		// 他のプロセスがマップしている領域が消えないよう、ファイルは縮めない
+		{
+			write_data(datafile_channel,pagesize,data.duplicate());
+			sync_channel(datafile_channel);
+		}
+
+		// メタデータを書き込む
+		{
+			put_header(datafile_map,data_length,new_version,digest,digest_type,storage_inline);
+			seq_end();
+			sync_header();
+			last_save_version = new_version;
+		}
+
+		// バックアップファイルに書き込む
+		{
+			write_backup_header();
+			backupfile_channel.truncate(pagesize + data_length);
+			write_data(backupfile_channel,pagesize,data.duplicate());
+			sync_channel(backupfile_channel);
+		}
+
+		// 古いスナップショットファイルが残っているとリストア時に使われてしまう
+		if( bHadSnapshotFile ) snapshotfile.delete();
+	}
+
+	// スナップショットのヘッダを書く。ログはカラになる
+	private static void put_header(ByteBuffer b,int data_length,int version,byte[] digest,int digest_type,int storage){
+		b.position(0);
+		b.putInt( data_length );
+		b.putInt( version );
+		b.putInt( digest.length );
+		b.put( digest );
+		b.putInt( ofs_log_length, 0 );
+		b.putInt( ofs_snapshot_version, version );
+		b.putInt( ofs_digest_type, digest_type );
+		b.putInt( ofs_storage, storage );
+	}
+
+	/////////////////////////////////////////////////////////////
+	// スナップショットファイル
+	// スナップショットを一時ファイルに書いて同期してから、rename でスナップショットファイルを置き換える。
+	// データファイルにはヘッダ(とログ)だけを書くので、データファイルへの書き込みとバックアップファイルへの２重書きが無くなる。
+	// スナップショットファイル自体もヘッダ付きの完全なデータファイルの形式なので、単独で確認やリストアができる。
+	// 書き込み途中で落ちても rename の前なら古いスナップショットが、後なら新しいスナップショットが残る。
+	// ロックとヘッダのマッピングは今まで通りデータファイルで行う。
+	// スナップショットファイルを使って書いたファイルは、この機能のない古いバージョンからは読めない
+
+	public synchronized void setSnapshotFile(boolean bSnapshotFile){
+		this.bSnapshotFile = bSnapshotFile;
+	}
+
+	// スナップショットファイルを置き換える(内部処理のみで、ロックを含まない)
+	private void save_snapshot_file(ByteBuffer data,int new_version,byte[] digest,int digest_type) throws IOException{
+		int data_length = data.remaining();
+		ByteBuffer header = ByteBuffer.allocate(pagesize);
+		put_header(header,data_length,new_version,digest,digest_type,storage_inline);
+		// リストアした時にカウンタが消えないよう、スナップショットファイルにも写しておく
+		ByteBuffer counters = datafile_map.duplicate();
+		counters.position(ofs_counter);
+		counters.limit(pagesize);
+		header.position(ofs_counter);
+		header.put(counters);
+		header.clear();
+		// rename からヘッダの更新までの間に、ロックを取らずに読む側が古いヘッダと新しいスナップショットを組み合わせないよう、
+		// 一時ファイルの書き込みから囲む。途中で失敗したらシーケンス番号は奇数のまま残り、読む側はロックを取って読む
+		seq_begin();
+		RandomAccessFile tmp = new RandomAccessFile(snapshot_tmpfile,"rw");
+		try{
+			set_permission(snapshot_tmpfile.getPath(),permission);
+			FileChannel fc = tmp.getChannel();
+			fc.truncate(0);
+			write_data(fc,0,header);
+			write_data(fc,pagesize,data.duplicate());
+			// 同期しないまま rename すると、落ちた時に中身のないファイルが残ることがある
+			if( durability != durability_none ){
+				long t = ( metrics == null ? 0 : System.nanoTime() );
+				fc.force(durability == durability_full);
+				if( metrics != null ) record(metric_fsync,System.nanoTime() - t);
+			}
+		}finally{
+			tmp.close();
+		}
+		if( !snapshot_tmpfile.renameTo(snapshotfile) ) throw new IOException("rename failed: "+snapshot_tmpfile.getPath());
+
+		// ヘッダを書き込む。ログは捨てる
+		put_header(datafile_map,data_length,new_version,digest,digest_type,storage_snapshot_file);
+		seq_end();
+		sync_header();
+	}
+
+	// スナップショットファイルを読んで、ファイル自身のヘッダでダイジェストを確認する
+	private ByteBuffer read_snapshot_file(boolean bMapped) throws IOException{
+		RandomAccessFile f = new RandomAccessFile(snapshotfile,"r");
+		try{
+			FileChannel fc = f.getChannel();
+			ByteBuffer header = ByteBuffer.wrap(read_data(fc,0,pagesize));
+			int length = header.getInt(0);
+			int digest_len = header.getInt(8);
+			int digest_type = header.getInt(ofs_digest_type);
+			ByteBuffer snapshot;
+			if( bMapped ){
+				// マッピングはファイルを閉じても有効
+				snapshot = fc.map(FileChannel.MapMode.READ_ONLY,pagesize,length).asReadOnlyBuffer();
+			}else{
+				snapshot = ByteBuffer.wrap(read_data(fc,pagesize,length));
+			}
+			if( length > 0 ){
+				byte[] digest = make_digest(digest_type,snapshot);
+				if( digest.length != digest_len ) throw new RuntimeException("snapshot file is broken. digest size not match.");
+				for(int i=0;i<digest_len;++i){
+					if( header.get(12+i) != digest[i] ) throw new RuntimeException("snapshot file is broken. digest not match.");
+				}
+			}
+			return snapshot;
+		}finally{
+			f.close();
+		}
+	}
+
+	// ログの追記(内部処理のみで、ロックを含まない)
+	// inline_length はデータファイル内のスナップショットの長さ
+	private void append_sub(byte[] record,int inline_length,int log_length) throws IOException{
+		int new_version = next_version(datafile_map.getInt(4));
+
+		if(debug) Log.d(TAG,String.format( "append: recordlen=%d,version=%d,loglen=%d"
+			,record.length
+			,new_version
+			,log_length
+		));
+
+		ByteBuffer b = ByteBuffer.allocate(log_header_size + record.length);
+		b.putInt(record.length);
+		b.putInt(new_version);
+		b.putInt(check_crc32(record));
+		b.put(record);
+		long position = pagesize + inline_length + log_length;
+		int new_log_length = log_length + b.capacity();
+		boolean bBackup = ( datafile_map.getInt(ofs_storage) != storage_snapshot_file );
+		if( metrics != null ) record(metric_save_bytes,b.capacity() * ( bBackup ? 2L : 1L ));
+
+		// レコードを書いてからヘッダを更新する。途中で落ちてもヘッダの範囲外のゴミになるだけ
+		seq_begin();
+		{
+			b.flip();
+			write_data(datafile_channel,position,b);
+			sync_channel(datafile_channel);
+		}
+		{
+			datafile_map.putInt( 4, new_version );
+			datafile_map.putInt( ofs_log_length, new_log_length );
+			seq_end();
+			sync_header();
+			last_save_version = new_version;
+		}
+		// スナップショットファイルを使っている間はバックアップファイルを更新しない
+		if( bBackup ){
+			b.flip();
+			write_data(backupfile_channel,position,b);
+			backupfile_channel.truncate(position + b.capacity());
+			write_backup_header();
+			sync_channel(backupfile_channel);
+		}
+	}
+
+	///////////////////////////////////////////////////
+	// 書き込みの永続性
+	// durability_full 以外では、電源断などで直前の更新が失われることがあります。
+	// durability_deferred と durability_none では書き込みの順序も保証されないので、
+	// ファイルが壊れた場合はバックアップファイルからの復元か、データの初期化になります。
+
+	public synchronized void setDurability(int durability){
+		setDurability(durability,deferred_sync_interval);
+	}
+
+	// sync_interval は durability_deferred で同期する間隔(ミリ秒)
+	public synchronized void setDurability(int durability,long sync_interval){
+		if( durability < durability_full || durability > durability_none ) throw new RuntimeException("unknown durability: "+durability);
+		// 同期のスレッドは間隔を変えられないので、作り直す
+		if( durability != durability_deferred || sync_interval != deferred_sync_interval ){
+			sync_pending();
+			stop_deferred_sync();
+		}
+		this.deferred_sync_interval = sync_interval;
+		this.durability = durability;
+	}
+
+	// ファイルの同期(内部処理のみで、ロックを行わない)
+	private void sync_channel(FileChannel fc) throws IOException{
+		long t = ( metrics == null ? 0 : System.nanoTime() );
+		switch(durability){
+		case durability_full: fc.force(true); break;
+		case durability_data_only: fc.force(false); break;
+		case durability_deferred: request_deferred_sync(); return;
+		case durability_none: return;
+		}
+		if( metrics != null ) record(metric_fsync,System.nanoTime() - t);
+	}
+
+	// マップしたヘッダの同期(内部処理のみで、ロックを行わない)
+	private void sync_header(){
+		long t = ( metrics == null ? 0 : System.nanoTime() );
+		switch(durability){
+		case durability_full:
+		case durability_data_only:
+			datafile_map.force();
+			break;
+		case durability_deferred:
+			request_deferred_sync();
+			return;
+		case durability_none:
+			return;
+		}
+		if( metrics != null ) record(metric_fsync,System.nanoTime() - t);
+	}
+
+	// 一定時間後に同期を行うよう依頼する。その間の書き込みはまとめて同期される
+	// 同期のスレッドは最初の依頼で起動して、close() や durability の変更まで使い続ける
+	private void request_deferred_sync(){
+		bSyncPending = true;
+		if( deferred_syncer == null ){
+			deferred_syncer = new DeferredSyncer(deferred_sync_interval);
+			Thread thread = new Thread(deferred_syncer,"DeferredSync");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		deferred_syncer.request();
+	}
+
+	// cancel() はフラグを立てて待機中のスレッドを起こすだけで、スレッドの終了は待たない
+	private void stop_deferred_sync(){
+		if( deferred_syncer == null ) return;
+		deferred_syncer.cancel();
+		deferred_syncer = null;
+	}
+
+	// durability_deferred で同期するスレッドの処理
+	// 書き込みがあれば interval 後にそれまでの書き込みをまとめて同期し、なければ次の書き込みまで待つ
+	// このオブジェクトのロックを持ったままインスタンスのロックを取らないこと(request() はインスタンスのロックを持って呼ばれる)
+	private final class DeferredSyncer implements Runnable{
+		final long interval;
+		private boolean bRequested; // このオブジェクトのロックを持って読み書きする
+		private boolean bCancelled;
+
+		DeferredSyncer(long interval){
+			this.interval = interval;
+		}
+
+		synchronized void request(){
+			if( bRequested ) return;
+			bRequested = true;
+			notifyAll();
+		}
+
+		synchronized void cancel(){
+			bCancelled = true;
+			notifyAll();
+		}
+
+		// 依頼があるまで待ってから、さらに interval だけ待つ。止められたら false
+		private synchronized boolean wait_request(){
+			try{
+				while( !bRequested ){
+					if( bCancelled ) return false;
+					wait();
+				}
+				long end = System.currentTimeMillis() + interval;
+				for(;;){
+					if( bCancelled ) return false;
+					long remain = end - System.currentTimeMillis();
+					if( remain <= 0 ) break;
+					wait(remain);
+				}
+				// これ以降の書き込みは次の回で同期する
+				bRequested = false;
+				return true;
+			}catch(InterruptedException ex){
+				return false;
+			}
+		}
+
+		@Override
+		public void run(){
+			while( wait_request() ){
+				synchronized(TransactionalFileAccess.this){
+					if( deferred_syncer != this ) return;
+					sync_pending();
+				}
+			}
+		}
+	}
+
+	// 遅延している同期を行う
+	private void sync_pending(){
+		if( !bSyncPending || datafile_channel == null ) return;
+		try{
+			long t = ( metrics == null ? 0 : System.nanoTime() );
+			datafile_channel.force(true);
+			datafile_map.force();
+			backupfile_channel.force(true);
+			bSyncPending = false;
+			if( metrics != null ) record(metric_fsync,System.nanoTime() - t);
+		}catch(Throwable ex){
+			ex.printStackTrace();
+		}
+	}
+
+	///////////////////////////////////////////////////
+	// 計測
+	// setMetrics() で受け取り先を設定すると、ロック待ち時間や読み書きのバイト数などを記録する。
+	// 設定しなければ時刻の取得も行わない
+
+	public void setMetrics(Metrics metrics){
+		this.metrics = metrics;
+	}
+
+	private void record(int metric,long value){
+		Metrics m = metrics;
+		if( m != null ) m.record(this,metric,value);
+	}
+
+	// 読み直しを記録する。読んだバージョンが自分の書いたものでなければ metric_reload_other にも数える
+	private void record_reload(){
+		record(metric_reload,1);
+		if( last_version != last_save_version ) record(metric_reload_other,1);
+	}
+
+	private void record_reload_result(Object result){
+		if( result == null ){
+			record(metric_reload_skip,1);
+		}else{
+			record_reload();
+		}
+	}
+
+	// ダイジェストを計算して、計算時間を記録する
+	private byte[] make_digest(int digest_type,ByteBuffer data){
+		long t = ( metrics == null ? 0 : System.nanoTime() );
+		byte[] digest = getDigestMaker(digest_type).digest(data);
+		if( metrics != null ) record(metric_digest,System.nanoTime() - t);
+		return digest;
+	}
+
+	// 計測値をファイルごと、種類ごとに集計する。複数のファイルで共有してよい
+	public static class SimpleMetrics implements Metrics{
+		// 集計値。histogram[n] は2進でn桁の値(2^(n-1) 以上 2^n 未満)の回数
+		public static final class Stat{
+			public long count;
+			public long sum;
+			public long max;
+			public final long[] histogram = new long[65];
+
+			Stat copy(){
+				Stat dst = new Stat();
+				dst.count = count;
+				dst.sum = sum;
+				dst.max = max;
+				System.arraycopy(histogram,0,dst.histogram,0,histogram.length);
+				return dst;
+			}
+
+			// 割合 p の位置を含む桁の上限。大まかな値
+			public long percentile(double p){
+				long n = (long)Math.ceil(count * p);
+				long sum = 0;
+				for(int i=0;i<histogram.length;++i){
+					sum += histogram[i];
+					if( sum >= n && sum > 0 ) return i == 0 ? 0 : Math.min( max, i >= 63 ? Long.MAX_VALUE : (1L<<i) - 1 );
+				}
+				return max;
+			}
+		}
+
+		private final HashMap<String,Stat[]> map = new HashMap<String,Stat[]>();
+
+		@Override
+		public synchronized void record(TransactionalFileAccess file,int metric,long value){
+			String path = file.datafile.getPath();
+			Stat[] list = map.get(path);
+			if( list == null ){
+				list = new Stat[metric_count];
+				map.put(path,list);
+			}
+			Stat stat = list[metric];
+			if( stat == null ) list[metric] = stat = new Stat();
+			if( value < 0 ) value = 0;
+			++stat.count;
+			stat.sum += value;
+			if( value > stat.max ) stat.max = value;
+			++stat.histogram[ 64 - Long.numberOfLeadingZeros(value) ];
+		}
+
+		// 集計値のコピーを返す。記録がなければ null
+		public synchronized Stat get(String path,int metric){
+			Stat[] list = map.get(path);
+			if( list == null || list[metric] == null ) return null;
+			return list[metric].copy();
+		}
+
+		public synchronized void reset(){
+			map.clear();
+		}
+
+		// ファイルごとの集計値を文字列にする。時間はマイクロ秒
+		public synchronized String report(){
+			StringBuilder sb = new StringBuilder();
+			ArrayList<String> paths = new ArrayList<String>(map.keySet());
+			Collections.sort(paths);
+			for( String path : paths ){
+				sb.append(path).append('\n');
+				Stat[] list = map.get(path);
+				for(int i=0;i<metric_count;++i){
+					Stat stat = list[i];
+					if( stat == null ) continue;
+					sb.append("  ").append(metric_names[i]).append(": count=").append(stat.count);
+					if( metric_is_time[i] ){
+						sb.append(String.format(" avg=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus"
+							,stat.sum / 1000.0 / stat.count
+							,stat.percentile(0.5) / 1000.0
+							,stat.percentile(0.99) / 1000.0
+							,stat.max / 1000.0
+						));
+					}else if( stat.sum != stat.count ){
+						sb.append(" sum=").append(stat.sum).append(" max=").append(stat.max);
+					}
+					sb.append('\n');
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	///////////////////////////////////////////////////
+	// ユーティリティ
+
+	// Androidの非公開APIを使ってファイルパーミッションを設定する
+	public static final int set_permission(String path,int perms){
+		return set_permission(path,perms,-1,-1);
+	}
+
+	// Androidの非公開APIを使ってファイルパーミッションを設定する
+	public static final int set_permission(String path,int perms,int uid,int gid){
+		try{
+			//
+			Class<?> clazz = Class.forName("android.os.FileUtils");
+			Method method= clazz.getMethod("setPermissions",String.class ,int.class ,int.class ,int.class);
+			// 
+			return ((Integer)(method.invoke(null,path,perms,uid,gid))).intValue();
+			// returns 0 or errno
+		}catch(Throwable ex){
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+
+	// ログレコードのチェックサム
+	public static final int check_crc32(byte[] data){
+		CRC32 crc = new CRC32();
+		crc.update(data,0,data.length);
+		return (int)crc.getValue();
+	}
+
+	// ダイジェストの計算
+	public static final byte[] check_digest(byte[] data){
+		try{
+			MessageDigest digest_maker = MessageDigest.getInstance(digest_type);
+			digest_maker.update(data);
+			return digest_maker.digest();
+		}catch(NoSuchAlgorithmException ex){
+			throw new RuntimeException(ex);
+		}
+	}
+}
+